@@ -0,0 +1,157 @@
+package co.epitre.aelf_lectures.data;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Readers and writers of the cache, on a real SQLite database. Readers only take the connection
+ * read lock and rely on WAL snapshots: they must neither wait for a sync batch nor see it half
+ * written.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AelfCacheHelperConcurrencyTest {
+    private static final String DB_NAME = "aelf_cache_test.db";
+
+    private Context ctx;
+    private AelfCacheHelper cache;
+
+    @Before
+    public void setUp() {
+        ctx = InstrumentationRegistry.getTargetContext();
+        ctx.deleteDatabase(DB_NAME);
+        cache = new AelfCacheHelper(ctx, DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+        ctx.deleteDatabase(DB_NAME);
+    }
+
+    // A lookup started and completed while a long sync batch was being written proves that
+    // readers do not queue behind the writer.
+    @Test
+    public void readersDoNotWaitForWriters() throws Exception {
+        final AelfDate today = new AelfDate();
+        cache.store(LecturesController.WHAT.MESSE, today, lectures("seed", 0));
+
+        // Encoded ahead of time so that the write window is the transaction itself
+        final List<AelfCacheHelper.PendingWrite> batch = new ArrayList<>();
+        for (int day = 1; day <= 60; day++) {
+            for (LecturesController.WHAT what : LecturesController.WHAT.values()) {
+                batch.add(new AelfCacheHelper.PendingWrite(what, today.plusDays(day), lectures(what.urlName(), day), null, null, null));
+            }
+        }
+
+        final long[] window = new long[2];
+        final AtomicReference<Throwable> writerError = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    window[0] = System.nanoTime();
+                    cache.storeAll(batch);
+                    window[1] = System.nanoTime();
+                } catch (Throwable e) {
+                    writerError.set(e);
+                }
+            }
+        });
+
+        List<long[]> lookups = new ArrayList<>();
+        writer.start();
+        while (writer.isAlive()) {
+            long start = System.nanoTime();
+            CacheEntry entry = cache.lookup(LecturesController.WHAT.MESSE, today, true);
+            long end = System.nanoTime();
+
+            assertNotNull(entry);
+            assertEquals("seed", entry.getLectures().get(0).key);
+            lookups.add(new long[]{start, end});
+        }
+        writer.join();
+        if (writerError.get() != null) {
+            throw new AssertionError(writerError.get());
+        }
+
+        int duringWrite = 0;
+        for (long[] lookup : lookups) {
+            if (lookup[0] > window[0] && lookup[1] < window[1]) {
+                duringWrite++;
+            }
+        }
+        assertTrue("No lookup completed during the write, out of "+lookups.size(), duringWrite > 0);
+
+        // And the batch itself made it
+        assertNotNull(cache.lookup(LecturesController.WHAT.COMPLIES, today.plusDays(60), false));
+    }
+
+    // Readers racing with a writer replacing the same office see each version whole, and never go
+    // back to an older one.
+    @Test
+    public void readersSeeCommittedVersions() throws Exception {
+        final AelfDate today = new AelfDate();
+        final int versions = 50;
+        cache.store(LecturesController.WHAT.LAUDES, today, lectures("0", 0));
+
+        final AtomicReference<Throwable> writerError = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int version = 1; version <= versions; version++) {
+                        cache.store(LecturesController.WHAT.LAUDES, today, lectures(Integer.toString(version), version));
+                    }
+                } catch (Throwable e) {
+                    writerError.set(e);
+                }
+            }
+        });
+
+        int last = 0;
+        writer.start();
+        while (writer.isAlive()) {
+            List<LectureItem> seen = cache.lookup(LecturesController.WHAT.LAUDES, today, true).getLectures();
+            int version = Integer.parseInt(seen.get(0).key);
+
+            assertTrue("Went back from version "+last+" to "+version, version >= last);
+            for (LectureItem lecture : seen) {
+                assertEquals(seen.get(0).key, lecture.key);
+            }
+            last = version;
+        }
+        writer.join();
+        if (writerError.get() != null) {
+            throw new AssertionError(writerError.get());
+        }
+
+        assertEquals(Integer.toString(versions), cache.lookup(LecturesController.WHAT.LAUDES, today, true).getLectures().get(0).key);
+    }
+
+    // A few readings with distinct, reasonably sized bodies: bodies are deduplicated by content
+    private static List<LectureItem> lectures(String key, int seed) {
+        List<LectureItem> lectures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            StringBuilder description = new StringBuilder();
+            while (description.length() < 4096) {
+                description.append("<p>").append(key).append(' ').append(seed).append(' ').append(i).append("</p>");
+            }
+            lectures.add(new LectureItem(key, "Lecture "+i+" : "+key, description.toString(), "Ps "+i));
+        }
+        return lectures;
+    }
+}
@@ -0,0 +1,79 @@
+package co.epitre.aelf_lectures.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Manifests, against a local stand-in for the API server: the revision of each office, and the
+ * fallback when the server does not publish them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EpitreApiManifestTest {
+    private static final String PREFS_NAME = "epitre_api_manifest_test";
+    private static final String DATE = "2018-03-20";
+
+    private Context ctx;
+    private MockWebServer server;
+    private EpitreApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+
+        // The API appends absolute paths to the endpoint
+        String endpoint = server.url("/").toString().replaceAll("/$", "");
+        ctx = InstrumentationRegistry.getTargetContext();
+        SharedPreferences preference = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        preference.edit()
+                .clear()
+                .putString("pref_participate_server", endpoint)
+                .putInt("version", 42)
+                .commit();
+        api = new EpitreApi(preference);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    @Test
+    public void revisions() throws Exception {
+        server.enqueue(new MockResponse().setBody("<manifest>" +
+                "<office name=\"messes\" date=\""+DATE+"\" revision=\"r1\" />" +
+                "<office name=\"laudes\" date=\""+DATE+"\" />" +
+                "</manifest>"));
+
+        Map<String, String> revisions = api.getManifest(DATE, 7);
+        assertEquals(1, revisions.size());
+        assertEquals("r1", revisions.get(EpitreApi.officeKey("messes", DATE)));
+        assertEquals("/42/manifest.xml?from="+DATE+"&days=7&region=romain", server.takeRequest().getPath());
+    }
+
+    @Test
+    public void notSupported() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        // The caller falls back on checking each office, without asking again
+        assertNull(api.getManifest(DATE, 7));
+        assertNull(api.getManifest(DATE, 7));
+        assertEquals(1, server.getRequestCount());
+    }
+}
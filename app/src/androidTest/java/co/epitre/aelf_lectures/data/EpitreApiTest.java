@@ -0,0 +1,170 @@
+package co.epitre.aelf_lectures.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * EpitreApi against a local stand-in for the API server: conditional requests, batches and their
+ * fallback on one request per office.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EpitreApiTest {
+    private static final String PREFS_NAME = "epitre_api_test";
+    private static final String DATE = "2018-03-20";
+
+    private Context ctx;
+    private MockWebServer server;
+    private EpitreApi api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+
+        // The API appends absolute paths to the endpoint
+        String endpoint = server.url("/").toString().replaceAll("/$", "");
+        ctx = InstrumentationRegistry.getTargetContext();
+        SharedPreferences preference = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        preference.edit()
+                .clear()
+                .putString("pref_participate_server", endpoint)
+                .putInt("version", 42)
+                .commit();
+        api = new EpitreApi(preference);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    @Test
+    public void conditionalRequestNotModified() throws Exception {
+        server.enqueue(new MockResponse()
+                .setBody(feed(channel(null, null, "messe")))
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Last-Modified", "Tue, 20 Mar 2018 04:00:00 GMT"));
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        EpitreApi.OfficeResult first = api.getOffice("messes", DATE, null, null, null, null);
+        assertFalse(first.isNotModified());
+        assertEquals("messe", first.lectures.get(0).key);
+        assertEquals("\"v1\"", first.etag);
+
+        EpitreApi.OfficeResult second = api.getOffice("messes", DATE, first.etag, first.lastModified, null, null);
+        assertTrue(second.isNotModified());
+        assertNull(second.lectures);
+        assertEquals(first.etag, second.etag);
+        assertEquals(first.lastModified, second.lastModified);
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("/42/office/messes/"+DATE+".rss?region=romain", request.getPath());
+        assertNull(request.getHeader("If-None-Match"));
+
+        request = server.takeRequest();
+        assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+        assertEquals("Tue, 20 Mar 2018 04:00:00 GMT", request.getHeader("If-Modified-Since"));
+    }
+
+    @Test
+    public void batchFallsBackOnSingleOffices() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(new MockResponse().setBody(feed(channel(null, null, "messe"))));
+        server.enqueue(new MockResponse().setBody(feed(channel(null, null, "laudes"))));
+
+        Map<String, List<LectureItem>> result = api.getOffices(Arrays.asList("messes", "laudes"), Arrays.asList(DATE));
+        assertEquals(2, result.size());
+        assertEquals("messe", result.get(EpitreApi.officeKey("messes", DATE)).get(0).key);
+        assertEquals("laudes", result.get(EpitreApi.officeKey("laudes", DATE)).get(0).key);
+
+        assertTrue(server.takeRequest().getPath().startsWith("/42/offices.rss?offices=messes,laudes&dates="+DATE));
+        assertEquals("/42/office/messes/"+DATE+".rss?region=romain", server.takeRequest().getPath());
+        assertEquals("/42/office/laudes/"+DATE+".rss?region=romain", server.takeRequest().getPath());
+
+        // Not supported: do not ask again
+        server.enqueue(new MockResponse().setBody(feed(channel(null, null, "messe"))));
+        server.enqueue(new MockResponse().setBody(feed(channel(null, null, "laudes"))));
+        api.getOffices(Arrays.asList("messes", "laudes"), Arrays.asList(DATE));
+        assertTrue(server.takeRequest().getPath().startsWith("/42/office/messes/"));
+        assertTrue(server.takeRequest().getPath().startsWith("/42/office/laudes/"));
+        assertEquals(5, server.getRequestCount());
+    }
+
+    @Test
+    public void failedBatchFallsBackOnSingleOffices() throws Exception {
+        server.enqueue(new MockResponse().setBody("<rss><channel><item><title>"));
+        server.enqueue(new MockResponse().setBody(feed(channel(null, null, "messe"))));
+        server.enqueue(new MockResponse().setBody(feed(channel(null, null, "laudes"))));
+
+        Map<String, List<LectureItem>> result = api.getOffices(Arrays.asList("messes", "laudes"), Arrays.asList(DATE));
+        assertEquals(2, result.size());
+        assertEquals("messe", result.get(EpitreApi.officeKey("messes", DATE)).get(0).key);
+        assertEquals("laudes", result.get(EpitreApi.officeKey("laudes", DATE)).get(0).key);
+
+        // Supported, only failed: ask again next time
+        server.enqueue(new MockResponse().setBody(feed(
+                channel("messes", DATE, "messe") +
+                channel("laudes", DATE, "laudes"))));
+        api.getOffices(Arrays.asList("messes", "laudes"), Arrays.asList(DATE));
+        assertTrue(server.takeRequest().getPath().startsWith("/42/offices.rss"));
+        server.takeRequest();
+        server.takeRequest();
+        assertTrue(server.takeRequest().getPath().startsWith("/42/offices.rss"));
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void partialBatch() throws Exception {
+        // The server only knows one of the offices: the other one is missing from the result
+        server.enqueue(new MockResponse().setBody(feed(
+                channel("messes", DATE, "messe") +
+                channel("messes", "2018-03-21", "messe-21"))));
+
+        Map<String, List<LectureItem>> result = api.getOffices(Arrays.asList("messes", "laudes"), Arrays.asList(DATE, "2018-03-21"));
+        assertEquals(2, result.size());
+        assertEquals("messe", result.get(EpitreApi.officeKey("messes", DATE)).get(0).key);
+        assertEquals("messe-21", result.get(EpitreApi.officeKey("messes", "2018-03-21")).get(0).key);
+        assertFalse(result.containsKey(EpitreApi.officeKey("laudes", DATE)));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    private static String feed(String channels) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><rss version=\"2.0\">"+channels+"</rss>";
+    }
+
+    // A channel with a single item. Batch channels name their office and date.
+    private static String channel(String office, String date, String key) {
+        StringBuilder channel = new StringBuilder("<channel>");
+        if (office != null) {
+            channel.append("<office>").append(office).append("</office><date>").append(date).append("</date>");
+        }
+        channel.append("<item>")
+                .append("<title>Lecture : ").append(key).append("</title>")
+                .append("<description><![CDATA[<p>").append(key).append("</p>]]></description>")
+                .append("<key>").append(key).append("</key>")
+                .append("<reference>Ps 1</reference>")
+                .append("</item></channel>");
+        return channel.toString();
+    }
+}
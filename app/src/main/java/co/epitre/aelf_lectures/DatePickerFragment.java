@@ -14,6 +14,9 @@ import android.content.DialogInterface;
 import android.os.Bundle;
 import android.widget.DatePicker;
 
+import co.epitre.aelf_lectures.data.AelfDate;
+import co.epitre.aelf_lectures.data.LecturesController;
+
 public class DatePickerFragment extends DialogFragment
     implements DatePickerDialog.OnDateSetListener, DialogInterface.OnClickListener {
 
@@ -29,6 +32,9 @@ public class DatePickerFragment extends DialogFragment
 
     CalendarDialogListener mListener;
 
+    // Office whose offline availability is shown, if any
+    protected LecturesController.WHAT what = null;
+
     public void setListener(CalendarDialogListener listener) {
         mListener = listener;
     }
@@ -45,6 +51,11 @@ public class DatePickerFragment extends DialogFragment
             if(timems > 0) {
                 c.setTimeInMillis(timems);
             }
+
+            int position = args.getInt("what", -1);
+            if (position >= 0 && position < LecturesController.WHAT.values().length) {
+                what = LecturesController.WHAT.values()[position];
+            }
         }
 
         // Use the current date as the default date in the picker
@@ -57,13 +68,53 @@ public class DatePickerFragment extends DialogFragment
         if (isBrokenSamsungDevice()) {
             context = new ContextThemeWrapper(context, android.R.style.Theme_Holo_Light_Dialog);
         }
-        dialog = new DatePickerDialog(context, this, year, month, day);
+        dialog = new DatePickerDialog(context, this, year, month, day) {
+            @Override
+            public void onDateChanged(DatePicker view, int year, int month, int day) {
+                super.onDateChanged(view, year, month, day);
+                showOfflineAvailability(year, month);
+            }
+        };
+        showOfflineAvailability(year, month);
+        if (what != null) {
+            LecturesController.getInstance(getActivity()).refreshAvailability(new Runnable() {
+                @Override
+                public void run() {
+                    DatePicker picker = dialog.getDatePicker();
+                    showOfflineAvailability(picker.getYear(), picker.getMonth());
+                }
+            });
+        }
         dialog.setCancelable(true);
         dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.button_cancel), this);
         dialog.setButton(DialogInterface.BUTTON_NEUTRAL, getString(R.string.button_today), this);
         return dialog;
     }
 
+    // Show how many days of the month are available offline, from the cache's availability index.
+    // This is answered from memory, it is cheap enough to run on each date change. The index is
+    // loaded again in the background when the dialog opens, the title is then updated.
+    private void showOfflineAvailability(int year, int month) {
+        if (what == null || getActivity() == null) {
+            return;
+        }
+
+        AelfDate first = new AelfDate(year, month, 1);
+        int days = first.lengthOfMonth();
+        boolean[] available = LecturesController.getInstance(getActivity()).getOfflineAvailability(what, first, days);
+        if (available == null) {
+            return;
+        }
+
+        int count = 0;
+        for (boolean isAvailable : available) {
+            if (isAvailable) {
+                count++;
+            }
+        }
+        dialog.setTitle(getString(R.string.dialog_calendar_offline, count, days));
+    }
+
     private static boolean isBrokenSamsungDevice() {
         // Samsung devices running 5.0 / 5.1 with talkback are broken when selecting a date. Yeah !
         // http://stackoverflow.com/questions/28618405/datepicker-crashes-on-my-device-when-clicked-with-personal-app
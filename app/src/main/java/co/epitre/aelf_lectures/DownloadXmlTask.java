@@ -11,10 +11,13 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import co.epitre.aelf_lectures.data.AelfDate;
+import co.epitre.aelf_lectures.data.AelfRssParser;
+import co.epitre.aelf_lectures.data.CancellationToken;
 import co.epitre.aelf_lectures.data.LectureItem;
 import co.epitre.aelf_lectures.data.LecturesController;
 import co.epitre.aelf_lectures.data.WhatWhen;
@@ -29,28 +32,29 @@ enum LectureLoadProgress {
     LOAD_DONE;
 }
 
+// Each callback names its source task: a listener only cares about the load it is waiting for
 interface LectureLoadProgressListener {
-    void onLectureLoadProgress(LectureLoadProgress progress);
-    void onLectureLoaded(List<LectureItem> lectures, boolean isSuccess);
+    void onLectureLoadProgress(DownloadXmlTask task, LectureLoadProgress progress);
+    void onLectureItemLoaded(DownloadXmlTask task, LectureItem lecture);
+    void onLectureLoaded(DownloadXmlTask task, List<LectureItem> lectures, boolean isSuccess);
 }
 
 /* Async loader
  *
- * Cancel are unreliable using URLConnection class in the controller. What we do instead to manage
- * cancels is:
- * - track current load task in a "future", in a thread pool
- * - set a flag
- * - cancel current load future
- * - on flag change, remove loading screen if any
- * - if the flag is true, ignore any result
- * Timeouts *should* limit the impact of threads / connections stacking. Should...
+ * Cancels go through a CancellationToken, shared with the controller: it aborts the SQLite query,
+ * the HTTP call and the parsing right away. The task is cancelled too so that its result, if any,
+ * is ignored.
+ *
+ * Items loaded from the network are published as soon as they are parsed so that the first reading
+ * shows up before the whole office is there. The final result still comes with onLectureLoaded.
  */
-class DownloadXmlTask extends AsyncTask<Void, Void, List<LectureItem>> {
+class DownloadXmlTask extends AsyncTask<Void, LectureItem, List<LectureItem>> {
     private Context ctx;
     private LectureLoadProgressListener lectureLoadProgressListener;
     private LecturesController lecturesCtrl = null;
 
     private WhatWhen ww = null;
+    private final CancellationToken cancellationToken;
 
     public static final String TAG = "DownloadXmlTask";
 
@@ -75,8 +79,9 @@ class DownloadXmlTask extends AsyncTask<Void, Void, List<LectureItem>> {
             "<div class=\"app-office-navigation\"><a href=\"aelf://app.epitre.co/action/apply-optimal-sync-settings\">Appliquer ces paramètres</a></div>";
 
 
-    public DownloadXmlTask(Context ctx, WhatWhen whatwhen, LectureLoadProgressListener lectureLoadProgressListener) {
+    public DownloadXmlTask(Context ctx, WhatWhen whatwhen, CancellationToken cancellationToken, LectureLoadProgressListener lectureLoadProgressListener) {
         this.ctx = ctx;
+        this.cancellationToken = cancellationToken;
         this.lecturesCtrl = LecturesController.getInstance(ctx);
         this.lectureLoadProgressListener = lectureLoadProgressListener;
         this.ww = whatwhen.copy();
@@ -91,7 +96,10 @@ class DownloadXmlTask extends AsyncTask<Void, Void, List<LectureItem>> {
             runOnUIThread(new Runnable() {
                 @Override
                 public void run() {
-                    lectureLoadProgressListener.onLectureLoadProgress(progress);
+                    if (isCancelled()) {
+                        return;
+                    }
+                    lectureLoadProgressListener.onLectureLoadProgress(DownloadXmlTask.this, progress);
                 }
             });
         }
@@ -104,16 +112,43 @@ class DownloadXmlTask extends AsyncTask<Void, Void, List<LectureItem>> {
             // TODO: start only after a delay
             // TODO: use a nicer lecture swap animation ?
             onLectureLoadProgress(LectureLoadProgress.LOAD_START);
-            List<LectureItem> lectures =  lecturesCtrl.loadLectures(ww.what, ww.when, ww.useCache);
+            List<LectureItem> lectures =  lecturesCtrl.loadLectures(ww.what, ww.when, ww.useCache, cancellationToken, new AelfRssParser.ItemListener() {
+                @Override
+                public void onLectureItem(LectureItem lecture) {
+                    publishProgress(lecture);
+                }
+            });
             onLectureLoadProgress(LectureLoadProgress.LOAD_DONE);
             return lectures;
         } catch (IOException e) {
+            // Timeouts are InterruptedIOExceptions too: only trust the token
+            if (cancellationToken.isCancelled()) {
+                Log.i(TAG, "Load cancelled");
+                return null;
+            }
             Log.e(TAG, "I/O error while loading. AELF servers down ?");
             onLectureLoadProgress(LectureLoadProgress.LOAD_FAIL);
             return null;
         }
     }
 
+    // Abort the load. Does not block: the background thread exits on its own, as soon as possible.
+    public void cancelLoad() {
+        cancel(false);
+        cancellationToken.cancel();
+    }
+
+    @Override
+    protected void onProgressUpdate(LectureItem... lectures) {
+        // Items published before the cancel may still be queued on the UI thread
+        if (lectureLoadProgressListener == null || isCancelled()) {
+            return;
+        }
+        for (LectureItem lecture : lectures) {
+            lectureLoadProgressListener.onLectureItemLoaded(this, lecture);
+        }
+    }
+
     @Override
     protected void onCancelled(List<LectureItem> lectureItems) {
         super.onCancelled(lectureItems);
@@ -187,7 +222,7 @@ class DownloadXmlTask extends AsyncTask<Void, Void, List<LectureItem>> {
         }
 
         if(lectureLoadProgressListener != null) {
-            lectureLoadProgressListener.onLectureLoaded(pager_data, isSuccess);
+            lectureLoadProgressListener.onLectureLoaded(this, pager_data, isSuccess);
         }
     }
 }
@@ -49,6 +49,12 @@ class LecturePagerAdapter extends FragmentStatePagerAdapter {
         return null;
     }
 
+    // Append a lecture while the office is still loading
+    void addLecture(LectureItem lecture) {
+        mlectures.add(lecture);
+        notifyDataSetChanged();
+    }
+
     public LectureItem getLecture(int position) {
         if(position < this.getCount()) {
             return mlectures.get(position);
@@ -41,7 +41,6 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
 
-import co.epitre.aelf_lectures.data.AelfDate;
 import co.epitre.aelf_lectures.data.LecturesController.WHAT;
 import co.epitre.aelf_lectures.sync.SyncAdapter;
 
@@ -595,7 +594,7 @@ public class LecturesActivity extends AppCompatActivity implements
         } else if (key.equals(SyncPrefActivity.KEY_PREF_REGION)) {
             // Invalidate cache
             SharedPreferences.Editor editor = settings.edit();
-            editor.putLong(SyncPrefActivity.KEY_APP_CACHE_MIN_DATE, new AelfDate().getTimeInMillis());
+            editor.putLong(SyncPrefActivity.KEY_APP_CACHE_MIN_DATE, System.currentTimeMillis());
             editor.apply();
         } else if (key.equals(SyncPrefActivity.KEY_PREF_DISP_NIGHT_MODE)) {
             recreate();
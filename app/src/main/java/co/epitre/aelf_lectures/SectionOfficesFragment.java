@@ -27,6 +27,7 @@ import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
@@ -34,6 +35,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import co.epitre.aelf_lectures.data.AelfDate;
+import co.epitre.aelf_lectures.data.CancellationToken;
 import co.epitre.aelf_lectures.data.LectureItem;
 import co.epitre.aelf_lectures.data.LecturesController;
 import co.epitre.aelf_lectures.data.WhatWhen;
@@ -58,6 +60,7 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
     WhatWhen whatwhen_previous = null;
     private boolean isLoading = false;
     private boolean isSuccess = true;
+    private boolean isStreaming = false; // The pager shows the items of a load still in progress
     DownloadXmlTask currentRefresh = null;
     Lock preventCancel = new ReentrantLock();
 
@@ -118,10 +121,10 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
             if (settings.getString(SyncPrefActivity.KEY_PREF_SYNC_LECTURES, res.getString(R.string.pref_lectures_def)).equals("messe")) {
                 whatwhen.what = LecturesController.WHAT.MESSE;
             } else {
-                long hour = whatwhen.when.get(Calendar.HOUR_OF_DAY);
+                long hour = new GregorianCalendar().get(Calendar.HOUR_OF_DAY);
                 if (hour < 3) {
                     whatwhen.what = LecturesController.WHAT.COMPLIES;
-                    whatwhen.when.add(GregorianCalendar.DAY_OF_YEAR, -1);
+                    whatwhen.when = whatwhen.when.plusDays(-1);
                 } else if (hour < 4) {
                     whatwhen.what = LecturesController.WHAT.LECTURES;
                 } else if (hour < 8) {
@@ -205,7 +208,7 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
                     String potential_date = chunks[1];
                     if (potential_date.matches("20[0-9]{2}-[0-9]{2}-[0-9]{2}")) {
                         String[] date_chunks = potential_date.split("-");
-                        whatwhen.when.set(
+                        whatwhen.when = new AelfDate(
                                 Integer.parseInt(date_chunks[0]),
                                 Integer.parseInt(date_chunks[1]) - 1,
                                 Integer.parseInt(date_chunks[2])
@@ -402,6 +405,7 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
     public boolean onCalendar() {
         Bundle args = new Bundle();
         args.putLong("time", whatwhen.when.getTimeInMillis());
+        args.putInt("what", whatwhen.what.getPosition());
 
         DatePickerFragment calendarDialog = new DatePickerFragment();
         calendarDialog.setListener(this);
@@ -590,7 +594,8 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
         // Start Loading
         preventCancel.lock();
         try {
-            DownloadXmlTask loader = new DownloadXmlTask(getContext(), whatwhen, this);
+            isStreaming = false;
+            DownloadXmlTask loader = new DownloadXmlTask(getContext(), whatwhen, new CancellationToken(), this);
             loader.execute();
             whatwhen.useCache = true; // cache override are one-shot
             currentRefresh = loader;
@@ -602,11 +607,9 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
     public void cancelLectureLoad(boolean restore) {
         preventCancel.lock();
         try {
-            currentRefresh.cancel(true);
-            Thread.sleep(100); // FIXME!!
-        } catch (NullPointerException e) {
-            // Asking for permission is racy
-        } catch (InterruptedException e) {
+            if (currentRefresh != null) {
+                currentRefresh.cancelLoad();
+            }
         } finally {
             currentRefresh = null;
             setLoading(false); // FIXME: should be in the cancel code path in the task imho
@@ -628,7 +631,12 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
     // Async load callbacks. Guaranted to be called on main UI thread
     //
 
-    public void onLectureLoadProgress(LectureLoadProgress progress) {
+    public void onLectureLoadProgress(DownloadXmlTask task, LectureLoadProgress progress) {
+        // Ignore late callbacks from a cancelled or replaced load
+        if (task != currentRefresh) {
+            return;
+        }
+
         switch (progress) {
             case LOAD_START:
                 setLoading(true);
@@ -644,8 +652,37 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
     }
 
 
-    public void onLectureLoaded(List<LectureItem> lectures, boolean isSuccess) {
+    // Show the first items of an office while the others are still loading
+    public void onLectureItemLoaded(DownloadXmlTask task, LectureItem lecture) {
         preventCancel.lock();
+        try {
+            if (task != currentRefresh) {
+                return;
+            }
+
+            if (isStreaming) {
+                lecturesPagerAdapter.addLecture(lecture);
+                return;
+            }
+
+            isStreaming = true;
+            lecturesPagerAdapter = new LecturePagerAdapter(activity.getSupportFragmentManager(), new ArrayList<LectureItem>());
+            lecturesPagerAdapter.addLecture(lecture);
+            mViewPager.setAdapter(lecturesPagerAdapter);
+            setLoading(false);
+        } catch (IllegalStateException e) {
+            // Fragment manager has gone away, will reload anyway so silently give up
+        } finally {
+            preventCancel.unlock();
+        }
+    }
+
+    public void onLectureLoaded(DownloadXmlTask task, List<LectureItem> lectures, boolean isSuccess) {
+        preventCancel.lock();
+        if (task != currentRefresh) {
+            preventCancel.unlock();
+            return;
+        }
         this.isSuccess = isSuccess;
         try {
             // If we have an anchor, attempt to find corresponding position
@@ -666,6 +703,16 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
 
             // Set up the ViewPager with the sections adapter.
             try {
+                // Already displayed while streaming: only move to the anchor, if any, and leave
+                // the current page alone otherwise.
+                if (isStreaming && isSuccess && lectures.size() == lecturesPagerAdapter.getCount()) {
+                    if (whatwhen.anchor != null) {
+                        mViewPager.setCurrentItem(whatwhen.position);
+                    }
+                    setLoading(false);
+                    return;
+                }
+
                 // 1 slide fragment <==> 1 lecture
                 lecturesPagerAdapter = new LecturePagerAdapter(activity.getSupportFragmentManager(), lectures);
                 FragmentTransaction transaction = activity.getSupportFragmentManager().beginTransaction();
@@ -678,6 +725,7 @@ public class SectionOfficesFragment extends SectionFragmentBase implements
             } catch (IllegalStateException e) {
                 // Fragment manager has gone away, will reload anyway so silently give up
             } finally {
+                isStreaming = false;
                 currentRefresh = null;
                 preventCancel.unlock();
             }
@@ -20,6 +20,7 @@ public class SyncPrefActivity extends PreferenceActivity implements OnSharedPref
     public static final String KEY_PREF_SYNC_LECTURES = "pref_sync_lectures";
     public static final String KEY_PREF_SYNC_DUREE = "pref_sync_duree";
     public static final String KEY_PREF_SYNC_CONSERV = "pref_sync_conserv";
+    public static final String KEY_PREF_SYNC_CACHE_BUDGET = "pref_sync_cache_budget";
     public static final String KEY_PREF_SYNC_WIFI_ONLY = "pref_sync_wifi_only";
     public static final String KEY_PREF_PARTICIPATE_BETA = "pref_participate_beta";
     public static final String KEY_PREF_PARTICIPATE_NOCACHE = "pref_participate_nocache";
@@ -27,6 +28,8 @@ public class SyncPrefActivity extends PreferenceActivity implements OnSharedPref
     public static final String KEY_APP_PREVIOUS_VERSION = "previous_version";
     public static final String KEY_APP_SYNC_LAST_ATTEMPT = "app_sync_last_attempt";
     public static final String KEY_APP_SYNC_LAST_SUCCESS= "app_sync_last_success";
+    public static final String KEY_APP_CACHE_SIZE = "app_cache_size";
+    public static final String KEY_APP_API_HEALTH = "app_api_health";
     public static final String KEY_APP_CACHE_MIN_VERSION= "min_cache_version";
     public static final String KEY_APP_CACHE_MIN_DATE = "min_cache_date";
     public static final String KEY_APP_VERSION = "version";
@@ -53,6 +56,7 @@ public class SyncPrefActivity extends PreferenceActivity implements OnSharedPref
         onSharedPreferenceChanged(null, KEY_PREF_SYNC_LECTURES);
         onSharedPreferenceChanged(null, KEY_PREF_SYNC_DUREE);
         onSharedPreferenceChanged(null, KEY_PREF_SYNC_CONSERV);
+        onSharedPreferenceChanged(null, KEY_PREF_SYNC_CACHE_BUDGET);
         onSharedPreferenceChanged(null, KEY_PREF_PARTICIPATE_SERVER);
     }
 
@@ -78,7 +82,8 @@ public class SyncPrefActivity extends PreferenceActivity implements OnSharedPref
         if (key.equals(KEY_PREF_SYNC_LECTURES) ||
             key.equals(KEY_PREF_REGION) ||
             key.equals(KEY_PREF_SYNC_DUREE) ||
-            key.equals(KEY_PREF_SYNC_CONSERV)) {
+            key.equals(KEY_PREF_SYNC_CONSERV) ||
+            key.equals(KEY_PREF_SYNC_CACHE_BUDGET)) {
             ListPreference pref = (ListPreference)findPreference(key);
             pref.setSummary(pref.getEntry());
         } else if (key.equals(KEY_PREF_PARTICIPATE_SERVER)) {
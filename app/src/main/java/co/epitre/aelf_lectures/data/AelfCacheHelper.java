@@ -1,16 +1,21 @@
 package co.epitre.aelf_lectures.data;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.text.SimpleDateFormat;
-import java.util.GregorianCalendar;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
@@ -22,58 +27,218 @@ import android.database.sqlite.SQLiteDatatypeMismatchException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import co.epitre.aelf_lectures.SyncPrefActivity;
+
 
 /**
- * Internal cache manager (SQLite). There is one table per office and one line per day.
+ * Internal cache manager (SQLite). There is a single table with one line per office, day and region.
  * Each line tracks the
- * - office date
- * - office content (serialized list<LectureItem>)
+ * - office name, date and liturgical region
+ * - office content (list<LectureItem>, encoded with LectureItemCodec)
  * - when this office was loaded               --> used for server initiated invalidation
  * - which version of the application was used --> used for upgrade initiated invalidation
+ * - when this office was last read             --> used by the retention, see CacheRetention
+ * - the HTTP validators of the office (ETag, Last-Modified) --> used for conditional revalidation
+ *
+ * Large descriptions (psalms, canticles, hymns, ...) come back day after day and from office to
+ * office. They are stored once in the bodies table, under the hash of their content, and referenced
+ * by the rows. Each body counts the rows referencing it and is deleted when it drops to 0.
+ *
+ * The connection is kept open for the lifetime of the helper, in WAL mode, and the hot statements
+ * are compiled once. It is only closed to recover from errors.
+ *
+ * Concurrency: any number of readers may run in parallel, each on its own WAL snapshot, alongside a
+ * single writer. Readers only share the connection lock. Writers additionally serialize on the
+ * writer lock, which also protects the statements pool. Closing the connection, to recover from
+ * an error, takes the connection lock exclusively.
+ *
+ * These locks only work within a process. The UI and the sync process each have their own helper
+ * on the same file: across processes, SQLite's file locks do the job. Write transactions are all
+ * IMMEDIATE, they take the write lock upfront and wait for it up to the busy timeout instead of
+ * failing halfway. Readers are never blocked in WAL mode. Other processes are told about committed
+ * writes through CacheInvalidation, so that they can keep offices in memory.
  */
 
 final class AelfCacheHelper extends SQLiteOpenHelper {
     private static final String TAG = "AELFCacheHelper";
-    private static final int DB_VERSION = 3;
+    private static final int DB_VERSION = 13;
     private static final String DB_NAME = "aelf_cache.db";
     private SharedPreferences preference = null;
     private Context ctx;
 
-    private static final String DB_TABLE_CREATE = "CREATE TABLE IF NOT EXISTS `%s` (" +
+    // Legacy, one table per office. Only used by migrations.
+    private static final String DB_LEGACY_TABLE_CREATE = "CREATE TABLE IF NOT EXISTS `%s` (" +
             "date TEXT PRIMARY KEY," +
             "lectures BLOB," +
             "create_date TEXT," +
             "create_version INTEGER" +
             ")";
-    private static final String DB_TABLE_SET = "INSERT OR REPLACE INTO `%s` VALUES (?,?,?,?)";
 
-    @SuppressLint("SimpleDateFormat")
-    private static final SimpleDateFormat keyFormatter = new SimpleDateFormat("yyyy-MM-dd");
+    // Dates are days since 1970-01-01 (see computeKey), create_date is a timestamp in milliseconds.
+    // Lookups go through the index of the UNIQUE constraint: the date comes first so that whole days
+    // and date ranges are a single index scan. The payload comes last so that reading the other
+    // columns does not walk its overflow pages. Tables created before version 13 have it in the
+    // middle, which is only slower.
+    private static final String DB_TABLE_CREATE = "CREATE TABLE IF NOT EXISTS `readings` (" +
+            "office TEXT NOT NULL," +
+            "date INTEGER NOT NULL," +
+            "region TEXT NOT NULL," +
+            "create_date INTEGER," +
+            "create_version INTEGER," +
+            "read_date INTEGER," +
+            "etag TEXT," +
+            "last_modified TEXT," +
+            "revision TEXT," +
+            "payload BLOB," +
+            "UNIQUE (date, office, region)" +
+            ")";
+
+    private static final String DB_BODIES_CREATE = "CREATE TABLE IF NOT EXISTS `bodies` (" +
+            "hash TEXT PRIMARY KEY," +
+            "refcount INTEGER NOT NULL," +
+            "body BLOB" +
+            ")";
+
+    // Persistent sync queue. Rows are deleted as soon as their office is synced, in the same
+    // transaction as the office itself, so that an interrupted sync resumes where it stopped. A
+    // queue is only valid for the day it was planned.
+    private static final String DB_QUEUE_CREATE = "CREATE TABLE IF NOT EXISTS `sync_queue` (" +
+            "office TEXT NOT NULL," +
+            "date INTEGER NOT NULL," +
+            "priority INTEGER NOT NULL," +
+            "planned INTEGER NOT NULL," +
+            "PRIMARY KEY (office, date)" +
+            ")";
+
+    // Negative cache: offices the server does not have yet, along with its answer. Rows expire, and
+    // are deleted as soon as the office itself is stored.
+    private static final String DB_MISSES_CREATE = "CREATE TABLE IF NOT EXISTS `misses` (" +
+            "office TEXT NOT NULL," +
+            "date INTEGER NOT NULL," +
+            "region TEXT NOT NULL," +
+            "expires INTEGER NOT NULL," +
+            "payload BLOB," +
+            "PRIMARY KEY (date, office, region)" +
+            ")";
+
+    // Persisted CacheAvailabilityIndex, one row per office and region. Rewritten in the same
+    // transactions as the readings. Rows built against another freshness stamp are rebuilt.
+    private static final String DB_AVAILABILITY_CREATE = "CREATE TABLE IF NOT EXISTS `availability` (" +
+            "office TEXT NOT NULL," +
+            "region TEXT NOT NULL," +
+            "stamp TEXT NOT NULL," +
+            "base INTEGER NOT NULL," +
+            "present BLOB," +
+            "fresh BLOB," +
+            "PRIMARY KEY (office, region)" +
+            ")";
+
+    // Stored as an UPDATE, then an INSERT if there was no row yet: INSERT OR REPLACE would delete the
+    // row and lose its read_date, and upserts are not available on older SQLite versions. Both
+    // statements take the same parameters, in the same order. Writes without a manifest revision
+    // keep the known one: at worst it is outdated, and the office is loaded again on next sync.
+    private static final String DB_TABLE_UPDATE = "UPDATE `readings` SET create_date=?, create_version=?, payload=?, etag=?, last_modified=?, revision=COALESCE(?, revision) WHERE `date`=? AND office=? AND region=?";
+    private static final String DB_TABLE_INSERT = "INSERT INTO `readings` (create_date, create_version, payload, etag, last_modified, revision, date, office, region) VALUES (?,?,?,?,?,?,?,?,?)";
+    private static final String DB_TABLE_GET = "SELECT create_date, create_version, payload, etag, last_modified, revision FROM `readings` WHERE `date`=? AND office=? AND region=? LIMIT 1";
+    private static final String DB_TABLE_GET_META = "SELECT create_date, create_version, NULL, etag, last_modified, revision FROM `readings` WHERE `date`=? AND office=? AND region=? LIMIT 1";
+    private static final String DB_TABLE_TOUCH = "UPDATE `readings` SET create_date=?, create_version=?, revision=COALESCE(?, revision) WHERE `date`=? AND office=? AND region=?";
+    private static final String DB_TABLE_GET_PAYLOAD = "SELECT payload FROM `readings` WHERE `date`=? AND office=? AND region=? LIMIT 1";
+    private static final String DB_TABLE_MARK_READ = "UPDATE `readings` SET read_date=? WHERE `date`=? AND office=? AND region=? AND (read_date IS NULL OR read_date <> ?)";
 
-    // TODO: prepare requests
+    // Row selections for deleteRows. Past rows never read go first, then the least recently read.
+    private static final String DB_WHERE_BEFORE = "`date` < ?";
+    private static final String DB_WHERE_OFFICE_BEFORE = "office=? AND `date` < ?";
+    private static final String DB_WHERE_LEAST_READ = "rowid IN (SELECT rowid FROM `readings` WHERE `date` < ? " +
+            "ORDER BY read_date IS NOT NULL, read_date, `date` LIMIT %d)";
+
+    private static final String DB_BODIES_INSERT = "INSERT OR IGNORE INTO `bodies` (hash, refcount, body) VALUES (?,0,?)";
+    private static final String DB_BODIES_ADD_REF = "UPDATE `bodies` SET refcount = refcount + ? WHERE hash=?";
+    private static final String DB_BODIES_GET = "SELECT hash, body FROM `bodies` WHERE hash IN (%s)";
+    private static final String DB_BODIES_PURGE = "DELETE FROM `bodies` WHERE refcount <= 0";
+
+    private static final String DB_QUEUE_INSERT = "INSERT OR REPLACE INTO `sync_queue` (office, date, priority, planned) VALUES (?,?,?,?)";
+    private static final String DB_QUEUE_DELETE = "DELETE FROM `sync_queue` WHERE office=? AND `date`=?";
+    private static final String DB_QUEUE_LIST = "SELECT office, `date`, priority FROM `sync_queue` ORDER BY priority, `date`";
+    private static final String DB_WHERE_QUEUE_STALE = "planned <> ? OR `date` < ?";
+
+    private static final String DB_AVAILABILITY_SET = "INSERT OR REPLACE INTO `availability` (office, region, stamp, base, present, fresh) VALUES (?,?,?,?,?,?)";
+    private static final String DB_AVAILABILITY_GET = "SELECT office, stamp, base, present, fresh FROM `availability` WHERE region=?";
+    private static final String DB_AVAILABILITY_SCAN = "SELECT office, `date`, create_date, create_version FROM `readings` WHERE region=?";
+
+    private static final String DB_MISSES_SET = "INSERT OR REPLACE INTO `misses` (office, date, region, expires, payload) VALUES (?,?,?,?,?)";
+    private static final String DB_MISSES_GET = "SELECT payload FROM `misses` WHERE `date`=? AND office=? AND region=? AND expires > ? LIMIT 1";
+    private static final String DB_MISSES_DELETE = "DELETE FROM `misses` WHERE `date`=? AND office=? AND region=?";
+    private static final String DB_MISSES_PURGE = "DELETE FROM `misses` WHERE expires <= ?";
+
+    // Connection tuning. Offices are tens of KB large: bigger pages shorten the overflow chains.
+    private static final int DB_PAGE_SIZE = 8192;
+    private static final int DB_CACHE_SIZE_KB = 2048;
+    private static final long DB_MMAP_SIZE = 8 * 1024 * 1024;
+    private static final long DB_AUTO_VACUUM_INCREMENTAL = 2;
+    private static final int DB_BUSY_TIMEOUT_MS = 5000;
+
+    // Compiled statements pool. Only valid for the current connection, reset on close. Only used by
+    // writers, with the writer lock held.
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+    private final ReentrantReadWriteLock connectionLock = new ReentrantReadWriteLock();
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    // Current availability index, replaced as a whole by writers. Null until first needed.
+    private volatile CacheAvailabilityIndex availability = null;
+
+    // Set when another process changed the database: the index is still shown by peekAvailability
+    // until it is loaded again.
+    private volatile boolean availabilityStale = false;
 
     AelfCacheHelper(Context context) {
-        super(context, DB_NAME, null, DB_VERSION);
+        this(context, DB_NAME);
+    }
+
+    // Open another database file. Only meant for tests.
+    AelfCacheHelper(Context context, String name) {
+        super(context, name, null, DB_VERSION);
         preference = PreferenceManager.getDefaultSharedPreferences(context);
         ctx = context;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     /**
      * Api
      */
 
-    @SuppressLint("SimpleDateFormat")
-    private String computeKey(GregorianCalendar when) {
+    // Dates are stored as days since 1970-01-01: compact, compared as integers and encoded without
+    // any shared formatter. See AelfDate.fromEpochDay for the way back.
+    private static int computeKey(AelfDate when) {
         if (when == null) {
-            return "0000-00-00";
+            return -1;
         }
-        return keyFormatter.format(when.getTime());
+        return when.toEpochDay();
+    }
+
+    private String getRegion() {
+        return preference.getString(SyncPrefActivity.KEY_PREF_REGION, "romain");
     }
 
     private void onSqliteError(SQLiteException e) {
+        connectionLock.writeLock().lock();
+        try {
+            recoverFromSqliteError(e);
+        } finally {
+            connectionLock.writeLock().unlock();
+        }
+    }
+
+    private void recoverFromSqliteError(SQLiteException e) {
         if (
             e instanceof SQLiteBindOrColumnIndexOutOfRangeException ||
             e instanceof SQLiteConstraintException ||
@@ -84,7 +249,9 @@ final class AelfCacheHelper extends SQLiteOpenHelper {
             // it from scratch. This is hackish but should allow more or less graceful recoveries.
             Log.e(TAG, "Critical database error. Droping + Re-creating", e);
             close();
-            ctx.deleteDatabase(DB_NAME);
+            ctx.deleteDatabase(getDatabaseName());
+            availability = null;
+            CacheInvalidation.notifyAll(ctx);
         } else {
             // Generic error. Close + re-open
             Log.e(TAG, "Datable "+e.getClass().getName()+". Closing + re-opening", e);
@@ -92,185 +259,999 @@ final class AelfCacheHelper extends SQLiteOpenHelper {
         }
     }
 
-    // Retry code statement 3 times, recover from sqlite exceptions. Even if everything went well, close
-    // the db in hope to mitigate concurrent access issues.
+    // Retry code statement 3 times, recover from sqlite exceptions. The connection is only closed
+    // (and re-opened on next use) on error. The code runs with the connection lock held in shared
+    // mode, it is released before recovering since a read lock can not be upgraded.
     private Object retry(Callable code) throws IOException {
         long maxAttempts = 3;
         while (maxAttempts-- > 0) {
+            SQLiteException error;
+            connectionLock.readLock().lock();
             try {
                 return code.call();
             } catch (SQLiteException e) {
-                if (maxAttempts > 0) {
-                    onSqliteError(e);
-                } else {
-                }
+                error = e;
+            } catch (OperationCanceledException e) {
+                throw new InterruptedIOException("Cancelled");
+            } catch (IOException e) {
+                throw e;
             } catch (Exception e) {
                 throw new IOException(e);
             } finally {
-                close();
+                connectionLock.readLock().unlock();
+            }
+
+            if (maxAttempts > 0) {
+                onSqliteError(error);
             }
         }
 
         return null;
     }
 
+    // Get a compiled statement from the pool. Must be called with the writer lock held.
+    private SQLiteStatement getStatement(String sql) {
+        SQLiteStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = getWritableDatabase().compileStatement(sql);
+            statements.put(sql, stmt);
+        }
+        stmt.clearBindings();
+        return stmt;
+    }
+
+    @Override
+    public void close() {
+        connectionLock.writeLock().lock();
+        try {
+            for (SQLiteStatement stmt : statements.values()) {
+                stmt.close();
+            }
+            statements.clear();
+            super.close();
+        } finally {
+            connectionLock.writeLock().unlock();
+        }
+    }
+
+    // A row waiting to be written, see storeAll
+    static final class PendingWrite {
+        final String office;
+        final AelfDate when;
+        final byte[] blob;
+        final Map<String, byte[]> bodies = new LinkedHashMap<>();
+        final String etag;
+        final String lastModified;
+        final String revision;
+
+        PendingWrite(LecturesController.WHAT what, AelfDate when, List<LectureItem> lectures, String etag, String lastModified, String revision) {
+            this.office = what.urlName();
+            this.when = when;
+            this.blob = LectureItemCodec.encode(lectures, bodies);
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.revision = revision;
+        }
+    }
 
+    void store(LecturesController.WHAT what, AelfDate when, List<LectureItem> lectures) throws IOException {
+        store(what, when, lectures, null, null, null);
+    }
 
-    synchronized void store(String what, String when, List<LectureItem> lectures) throws IOException {
-        final String key  = when;
-        final String create_date = computeKey(new GregorianCalendar());
+    // Store an office along with its HTTP validators and its manifest revision, if any
+    void store(LecturesController.WHAT what, AelfDate when, List<LectureItem> lectures, String etag, String lastModified, String revision) throws IOException {
+        List<PendingWrite> rows = new ArrayList<>(1);
+        rows.add(new PendingWrite(what, when, lectures, etag, lastModified, revision));
+        storeAll(rows);
+    }
+
+    // The server confirmed the office did not change: mark it as fresh, without rewriting it. When
+    // set, 'revision' is its manifest revision.
+    void touch(LecturesController.WHAT what, AelfDate when, final String revision) throws IOException {
+        final int key = computeKey(when);
+        final String office = what.urlName();
+        final String region = getRegion();
+        final long create_date = System.currentTimeMillis();
         final long create_version = preference.getInt("version", -1);
 
-        // Build table name
-        if (what.equals("messes")) {
-            what = "messe";
-        } else if (what.equals("informations")) {
-            what = "metas";
+        writerLock.lock();
+        try {
+            retry(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransactionNonExclusive();
+                    CacheAvailabilityIndex next;
+                    try {
+                        next = availabilityForUpdate(db);
+
+                        SQLiteStatement stmt = getStatement(DB_TABLE_TOUCH);
+                        stmt.bindLong(1, create_date);
+                        stmt.bindLong(2, create_version);
+                        bindStringOrNull(stmt, 3, revision);
+                        stmt.bindLong(4, key);
+                        stmt.bindString(5, office);
+                        stmt.bindString(6, region);
+                        if (stmt.executeUpdateDelete() > 0) {
+                            next.set(office, key, isFresh(create_date, create_version));
+                            writeAvailability(db, next, Collections.singletonList(office));
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    availability = next;
+                    return null;
+                }
+            });
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    // Store a group of rows in a single transaction, hence a single fsync.
+    void storeAll(final List<PendingWrite> rows) throws IOException {
+        storeAll(rows, Collections.<SyncTask>emptyList());
+    }
+
+    // Same as above, also removes the 'done' tasks from the sync queue in the same transaction
+    void storeAll(final List<PendingWrite> rows, final List<SyncTask> done) throws IOException {
+        if (rows.isEmpty() && done.isEmpty()) {
+            return;
         }
-        what = "lectures_"+what;
 
-        // build blob
-        final byte[] blob;
+        writerLock.lock();
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos;
-            oos = new ObjectOutputStream(bos);
-            oos.writeObject(lectures);
-            blob = bos.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            storeAllLocked(rows, done);
+        } finally {
+            writerLock.unlock();
         }
+    }
+
+    // Bind the parameters of DB_TABLE_UPDATE and DB_TABLE_INSERT
+    private static void bindRow(SQLiteStatement stmt, PendingWrite row, int key, String region, long create_date, long create_version) {
+        stmt.bindLong(1, create_date);
+        stmt.bindLong(2, create_version);
+        stmt.bindBlob(3, row.blob);
+        bindStringOrNull(stmt, 4, row.etag);
+        bindStringOrNull(stmt, 5, row.lastModified);
+        bindStringOrNull(stmt, 6, row.revision);
+        stmt.bindLong(7, key);
+        stmt.bindString(8, row.office);
+        stmt.bindString(9, region);
+    }
+
+    private void storeAllLocked(final List<PendingWrite> rows, final List<SyncTask> done) throws IOException {
+        final String region = getRegion();
+        final long create_date = System.currentTimeMillis();
+        final long create_version = preference.getInt("version", -1);
 
         // insert into the database
-        final String sql = String.format(DB_TABLE_SET, what);
         retry(new Callable() {
             @Override
             public Object call() throws Exception {
-                SQLiteStatement stmt;
-                stmt = getWritableDatabase().compileStatement(sql);
-                stmt.bindString(1, key);
-                stmt.bindBlob(2, blob);
-                stmt.bindString(3, create_date);
-                stmt.bindLong(4, create_version);
+                SQLiteDatabase db = getWritableDatabase();
+
+                // Readers are not blocked by the transaction in WAL mode
+                db.beginTransactionNonExclusive();
+                CacheAvailabilityIndex next;
+                try {
+                    next = availabilityForUpdate(db);
+                    Set<String> offices = new HashSet<>();
+
+                    for (PendingWrite row : rows) {
+                        int key = computeKey(row.when);
+                        next.set(row.office, key, isFresh(create_date, create_version));
+                        offices.add(row.office);
+
+                        // Release the bodies of the row being replaced, if any
+                        Cursor cur = db.rawQuery(DB_TABLE_GET_PAYLOAD, new String[]{Integer.toString(key), row.office, region});
+                        try {
+                            if (cur.moveToFirst() && !cur.isNull(0)) {
+                                addBodyRefs(countBodyRefs(null, cur.getBlob(0)), -1);
+                            }
+                        } finally {
+                            cur.close();
+                        }
+
+                        // Bodies first: they are only written if not already known
+                        for (Map.Entry<String, byte[]> body : row.bodies.entrySet()) {
+                            SQLiteStatement insertBody = getStatement(DB_BODIES_INSERT);
+                            insertBody.bindString(1, body.getKey());
+                            insertBody.bindBlob(2, body.getValue());
+                            insertBody.executeInsert();
+                        }
+                        addBodyRefs(countBodyRefs(null, row.blob), 1);
+
+                        SQLiteStatement stmt = getStatement(DB_TABLE_UPDATE);
+                        bindRow(stmt, row, key, region, create_date, create_version);
+                        if (stmt.executeUpdateDelete() == 0) {
+                            stmt = getStatement(DB_TABLE_INSERT);
+                            bindRow(stmt, row, key, region, create_date, create_version);
+                            stmt.executeInsert();
+                        }
 
-                stmt.execute();
+                        SQLiteStatement unmiss = getStatement(DB_MISSES_DELETE);
+                        unmiss.bindLong(1, key);
+                        unmiss.bindString(2, row.office);
+                        unmiss.bindString(3, region);
+                        unmiss.executeUpdateDelete();
+                    }
+                    getStatement(DB_BODIES_PURGE).executeUpdateDelete();
 
+                    for (SyncTask task : done) {
+                        SQLiteStatement dequeue = getStatement(DB_QUEUE_DELETE);
+                        dequeue.bindString(1, task.what.urlName());
+                        dequeue.bindLong(2, computeKey(task.when));
+                        dequeue.executeUpdateDelete();
+                    }
+
+                    writeAvailability(db, next, offices);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                availability = next;
                 return null;
             }
         });
+
+        // Committed: the other processes may now reload these offices
+        List<String> keys = new ArrayList<>(rows.size());
+        for (PendingWrite row : rows) {
+            keys.add(CacheInvalidation.key(row.office, row.when.toIsoString(), region));
+        }
+        CacheInvalidation.notifyWritten(ctx, keys);
     }
 
     // cleaner helper method
-    synchronized void truncateBefore(LecturesController.WHAT what, GregorianCalendar when) throws IOException {
-        final String key = computeKey(when);
-        final String table_name = what.toString();
+    void truncateBefore(AelfDate when) throws IOException {
+        deleteRows(DB_WHERE_BEFORE, new String[]{Integer.toString(computeKey(when))});
+    }
 
-        retry(new Callable() {
+    // Delete the rows of a single office older than 'when'. Returns the number of deleted rows.
+    int truncateBefore(LecturesController.WHAT what, AelfDate when) throws IOException {
+        return deleteRows(DB_WHERE_OFFICE_BEFORE, new String[]{what.urlName(), Integer.toString(computeKey(when))});
+    }
+
+    // Delete up to 'count' rows older than 'when', starting with the ones never or least recently
+    // read. Returns the number of deleted rows.
+    int evictLeastRead(AelfDate when, int count) throws IOException {
+        return deleteRows(String.format(DB_WHERE_LEAST_READ, count), new String[]{Integer.toString(computeKey(when))});
+    }
+
+    // Delete the rows matching 'where' and release their bodies, in a single transaction.
+    private int deleteRows(final String where, final String[] args) throws IOException {
+        writerLock.lock();
+        try {
+            Object deleted = retry(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransactionNonExclusive();
+                    CacheAvailabilityIndex next = null;
+                    int count;
+                    try {
+                        // Release the bodies referenced by the rows about to be deleted, and note
+                        // which days they were
+                        String region = getRegion();
+                        Map<String, Integer> refs = new HashMap<>();
+                        Map<String, List<Integer>> days = new HashMap<>();
+                        Set<String> otherRegions = new HashSet<>();
+                        Cursor cur = db.rawQuery("SELECT office, `date`, region, payload FROM `readings` WHERE "+where, args);
+                        try {
+                            while (cur.moveToNext()) {
+                                if (!cur.isNull(3)) {
+                                    countBodyRefs(refs, cur.getBlob(3));
+                                }
+                                if (!region.equals(cur.getString(2))) {
+                                    otherRegions.add(cur.getString(2));
+                                    continue;
+                                }
+                                List<Integer> officeDays = days.get(cur.getString(0));
+                                if (officeDays == null) {
+                                    officeDays = new ArrayList<>();
+                                    days.put(cur.getString(0), officeDays);
+                                }
+                                officeDays.add(cur.getInt(1));
+                            }
+                        } finally {
+                            cur.close();
+                        }
+                        addBodyRefs(refs, -1);
+
+                        count = db.delete("readings", where, args);
+
+                        getStatement(DB_BODIES_PURGE).executeUpdateDelete();
+
+                        // Clear the deleted days from the index. The index of the other regions is
+                        // only built again when the region is used.
+                        if (!days.isEmpty()) {
+                            next = availabilityForUpdate(db);
+                            for (Map.Entry<String, List<Integer>> office : days.entrySet()) {
+                                for (int day : office.getValue()) {
+                                    next.clear(office.getKey(), day);
+                                }
+                            }
+                            writeAvailability(db, next, days.keySet());
+                        }
+                        for (String other : otherRegions) {
+                            db.delete("availability", "region=?", new String[]{other});
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+
+                    if (next != null) {
+                        availability = next;
+                    }
+                    return count;
+                }
+            });
+            int count = deleted == null ? 0 : (Integer) deleted;
+            if (count > 0) {
+                CacheInvalidation.notifyAll(ctx);
+            }
+            return count;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    //
+    // Availability index
+    //
+
+    // The availability index, for the current region and freshness stamp. Answered from memory
+    // unless it has to be (re)loaded.
+    CacheAvailabilityIndex getAvailability() throws IOException {
+        CacheAvailabilityIndex index = availability;
+        if (index != null && !availabilityStale && index.matches(getRegion(), freshnessStamp())) {
+            return index;
+        }
+
+        writerLock.lock();
+        try {
+            return (CacheAvailabilityIndex) retry(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    return availabilityLocked(getWritableDatabase());
+                }
+            });
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    // Last loaded index, possibly outdated, without any lock nor I/O. Null if it was never loaded
+    // for the current region. Meant for the UI thread, see LecturesController.refreshAvailability.
+    CacheAvailabilityIndex peekAvailability() {
+        CacheAvailabilityIndex index = availability;
+        return index != null && index.region.equals(getRegion()) ? index : null;
+    }
+
+    // Another process changed the database, reload the index on next use
+    void invalidateAvailability() {
+        availabilityStale = true;
+    }
+
+    // Load the index from its table, or rebuild it from the readings if it is missing or outdated.
+    // Must be called with the writer lock held, before any change in the current transaction.
+    private CacheAvailabilityIndex availabilityLocked(SQLiteDatabase db) {
+        String region = getRegion();
+        String stamp = freshnessStamp();
+
+        CacheAvailabilityIndex index = availability;
+        if (index != null && !availabilityStale && index.matches(region, stamp)) {
+            return index;
+        }
+
+        // Cleared first, so that an invalidation received while loading is not lost
+        availabilityStale = false;
+        index = readAvailability(db, region, stamp);
+        if (index == null) {
+            Log.i(TAG, "Rebuilding availability index for "+region);
+            index = buildAvailability(db, region, stamp);
+            writeAvailability(db, index, null);
+        }
+        availability = index;
+        return index;
+    }
+
+    // The index as persisted, to be modified and written back in the current write transaction.
+    // The in memory copy may lag behind the other process' writes: always read it again, it is
+    // small and the transaction holds the database write lock. The result is not shared.
+    private CacheAvailabilityIndex availabilityForUpdate(SQLiteDatabase db) {
+        String region = getRegion();
+        String stamp = freshnessStamp();
+
+        CacheAvailabilityIndex index = readAvailability(db, region, stamp);
+        if (index == null) {
+            Log.i(TAG, "Rebuilding availability index for "+region);
+            index = buildAvailability(db, region, stamp);
+            writeAvailability(db, index, null);
+        }
+        return index;
+    }
+
+    // Returns null if there is no index yet or if it was built against another stamp
+    private static CacheAvailabilityIndex readAvailability(SQLiteDatabase db, String region, String stamp) {
+        CacheAvailabilityIndex index = new CacheAvailabilityIndex(region, stamp);
+        boolean found = false;
+        Cursor cur = db.rawQuery(DB_AVAILABILITY_GET, new String[]{region});
+        try {
+            while (cur.moveToNext()) {
+                if (!stamp.equals(cur.getString(1))) {
+                    return null;
+                }
+                index.load(cur.getString(0), cur.getInt(2), cur.isNull(3) ? null : cur.getBlob(3), cur.isNull(4) ? null : cur.getBlob(4));
+                found = true;
+            }
+        } finally {
+            cur.close();
+        }
+        return found ? index : null;
+    }
+
+    // Scan the readings of the region
+    private CacheAvailabilityIndex buildAvailability(SQLiteDatabase db, String region, String stamp) {
+        CacheAvailabilityIndex index = new CacheAvailabilityIndex(region, stamp);
+        Cursor cur = db.rawQuery(DB_AVAILABILITY_SCAN, new String[]{region});
+        try {
+            while (cur.moveToNext()) {
+                index.set(cur.getString(0), cur.getInt(1), isFresh(cur.getLong(2), cur.getLong(3)));
+            }
+        } finally {
+            cur.close();
+        }
+        return index;
+    }
+
+    // Persist the given offices of the index, or all of them when null. Must be called with the
+    // writer lock held.
+    private void writeAvailability(SQLiteDatabase db, CacheAvailabilityIndex index, Collection<String> offices) {
+        if (offices == null) {
+            db.delete("availability", "region=?", new String[]{index.region});
+        }
+        for (String office : offices == null ? index.offices() : offices) {
+            SQLiteStatement stmt = getStatement(DB_AVAILABILITY_SET);
+            stmt.bindString(1, office);
+            stmt.bindString(2, index.region);
+            stmt.bindString(3, index.stamp);
+            stmt.bindLong(4, index.base(office));
+            stmt.bindBlob(5, index.presentBytes(office));
+            stmt.bindBlob(6, index.freshBytes(office));
+            stmt.execute();
+        }
+    }
+
+    // Rows loaded before the last invalidation (application upgrade, server request) are stale.
+    // Same rule as CacheEntry.isNewerThan.
+    private String freshnessStamp() {
+        return getMinCreateDate()+"/"+getMinCreateVersion();
+    }
+
+    private boolean isFresh(long createDate, long createVersion) {
+        return createDate > 0 && createDate >= getMinCreateDate() && createVersion >= getMinCreateVersion();
+    }
+
+    private long getMinCreateDate() {
+        return preference.getLong(SyncPrefActivity.KEY_APP_CACHE_MIN_DATE, 0);
+    }
+
+    private long getMinCreateVersion() {
+        return preference.getInt(SyncPrefActivity.KEY_APP_CACHE_MIN_VERSION, -1);
+    }
+
+    //
+    // Negative cache
+    //
+
+    // Remember the server does not have this office yet, and what it answered, until 'expires'
+    void storeMiss(LecturesController.WHAT what, AelfDate when, List<LectureItem> answer, final long expires) throws IOException {
+        final int key = computeKey(when);
+        final String office = what.urlName();
+        final String region = getRegion();
+        final byte[] payload = LectureItemCodec.encode(answer);
+
+        writerLock.lock();
+        try {
+            retry(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransactionNonExclusive();
+                    try {
+                        // Expired rows are only useful until the next miss
+                        SQLiteStatement purge = getStatement(DB_MISSES_PURGE);
+                        purge.bindLong(1, System.currentTimeMillis());
+                        purge.executeUpdateDelete();
+
+                        SQLiteStatement stmt = getStatement(DB_MISSES_SET);
+                        stmt.bindString(1, office);
+                        stmt.bindLong(2, key);
+                        stmt.bindString(3, region);
+                        stmt.bindLong(4, expires);
+                        stmt.bindBlob(5, payload);
+                        stmt.execute();
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    // The last answer of the server for this office, if it did not have it and this did not expire
+    // yet. Null otherwise.
+    List<LectureItem> lookupMiss(LecturesController.WHAT what, AelfDate when) throws IOException {
+        final String[] args = new String[]{Integer.toString(computeKey(when)), what.urlName(), getRegion(), Long.toString(System.currentTimeMillis())};
+
+        byte[] payload = (byte[]) retry(new Callable() {
             @Override
             public Object call() throws Exception {
-                SQLiteDatabase db = getWritableDatabase();
-                db.delete(table_name, "`date` < ?", new String[] {key});
-                return null;
+                Cursor cur = getReadableDatabase().rawQuery(DB_MISSES_GET, args);
+                try {
+                    if (!cur.moveToFirst() || cur.isNull(0)) {
+                        return null;
+                    }
+                    return cur.getBlob(0);
+                } finally {
+                    cur.close();
+                }
             }
         });
+        return payload == null ? null : LectureItemCodec.decode(payload);
     }
 
-    // cast is not checked when decoding the blob but we where responsible for its creation so... dont care
-    @SuppressWarnings("unchecked")
-    synchronized List<LectureItem> load(LecturesController.WHAT what, GregorianCalendar when, GregorianCalendar minLoadDate, Long minLoadVersion) throws IOException {
-        final String key  = computeKey(when);
-        final String table_name = what.toString();
-        final String min_create_date = computeKey(minLoadDate);
-        final String min_create_version = String.valueOf(minLoadVersion);
+    //
+    // Sync queue
+    //
+
+    // Replace the sync queue with a new plan, for today
+    void planSync(final List<SyncTask> tasks) throws IOException {
+        final int today = computeKey(new AelfDate());
 
-        // load from db
-        Log.i(TAG, "Trying to load lecture from cache create_date>="+min_create_date+" create_version>="+min_create_version);
-        return (List<LectureItem>)retry(new Callable() {
+        writerLock.lock();
+        try {
+            retry(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransactionNonExclusive();
+                    try {
+                        db.delete("sync_queue", null, null);
+                        for (SyncTask task : tasks) {
+                            SQLiteStatement stmt = getStatement(DB_QUEUE_INSERT);
+                            stmt.bindString(1, task.what.urlName());
+                            stmt.bindLong(2, computeKey(task.when));
+                            stmt.bindLong(3, task.priority);
+                            stmt.bindLong(4, today);
+                            stmt.execute();
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    // Load the remaining tasks of today's plan, by priority. Plans from previous days are dropped
+    // first: their priorities are relative to the day they were planned.
+    List<SyncTask> loadSyncQueue() throws IOException {
+        final String today = Integer.toString(computeKey(new AelfDate()));
+
+        writerLock.lock();
+        try {
+            return (List<SyncTask>) retry(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.delete("sync_queue", DB_WHERE_QUEUE_STALE, new String[]{today, today});
+
+                    List<SyncTask> tasks = new ArrayList<>();
+                    Cursor cur = db.rawQuery(DB_QUEUE_LIST, null);
+                    try {
+                        while (cur.moveToNext()) {
+                            LecturesController.WHAT what = whatFromUrlName(cur.getString(0));
+                            AelfDate when = AelfDate.fromEpochDay(cur.getInt(1));
+                            if (what != null && when != null) {
+                                tasks.add(new SyncTask(what, when, cur.getInt(2)));
+                            }
+                        }
+                    } finally {
+                        cur.close();
+                    }
+                    return tasks;
+                }
+            });
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    private static LecturesController.WHAT whatFromUrlName(String office) {
+        for (LecturesController.WHAT what : LecturesController.WHAT.values()) {
+            if (what.urlName().equals(office)) {
+                return what;
+            }
+        }
+        return null;
+    }
+
+    // Remember this office was read today. Only writes when this is the first read of the day.
+    void markRead(LecturesController.WHAT what, AelfDate when) throws IOException {
+        final int key = computeKey(when);
+        final String office = what.urlName();
+        final String region = getRegion();
+        final int today = computeKey(new AelfDate());
+
+        writerLock.lock();
+        try {
+            retry(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    SQLiteStatement stmt = getStatement(DB_TABLE_MARK_READ);
+                    stmt.bindLong(1, today);
+                    stmt.bindLong(2, key);
+                    stmt.bindString(3, office);
+                    stmt.bindString(4, region);
+                    stmt.bindLong(5, today);
+                    stmt.executeUpdateDelete();
+                    return null;
+                }
+            });
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    // Bytes actually used by the database content, free pages excluded
+    long getUsedBytes() throws IOException {
+        Object used = retry(new Callable() {
             @Override
             public Object call() throws Exception {
                 SQLiteDatabase db = getReadableDatabase();
-                Cursor cur = db.query(
-                        table_name,                                                // FROM
-                        new String[]{"lectures", "create_date", "create_version"}, // SELECT
-                        "`date`=? AND `create_date` >= ? AND create_version >= ?", // WHERE
-                        new String[]{key, min_create_date, min_create_version},    // params
-                        null, null, null, "1"                                      // GROUP BY, HAVING, ORDER, LIMIT
-                );
-
-                // If there is no result --> exit
-                if(cur == null || cur.getCount() == 0) {
+                long pageCount = pragmaLong(db, "page_count");
+                long freePages = pragmaLong(db, "freelist_count");
+                return (pageCount - freePages) * pragmaLong(db, "page_size");
+            }
+        });
+        return used == null ? 0 : (Long) used;
+    }
+
+    // Size of the database on disk, including its write ahead log
+    long getFileBytes() {
+        File file = ctx.getDatabasePath(getDatabaseName());
+        File wal = new File(file.getPath() + "-wal");
+        return file.length() + wal.length();
+    }
+
+    // Give up to 'maxPages' free pages back to the file system. Databases created before
+    // incremental vacuum was enabled are converted first, with a full, one time, VACUUM.
+    void compact(final int maxPages) throws IOException {
+        writerLock.lock();
+        try {
+            retry(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    SQLiteDatabase db = getWritableDatabase();
+                    if (pragmaLong(db, "auto_vacuum") != DB_AUTO_VACUUM_INCREMENTAL) {
+                        Log.i(TAG, "Enabling incremental vacuum");
+                        pragma(db, "auto_vacuum = INCREMENTAL");
+                        db.execSQL("VACUUM");
+                        return null;
+                    }
+
+                    // Each step of the statement frees a page
+                    Cursor cur = db.rawQuery("PRAGMA incremental_vacuum("+maxPages+")", null);
+                    try {
+                        while (cur.moveToNext()) {
+                            // Keep stepping
+                        }
+                    } finally {
+                        cur.close();
+                    }
                     return null;
                 }
+            });
+        } finally {
+            writerLock.unlock();
+        }
+    }
 
-                cur.moveToFirst();
-                byte[] blob = cur.getBlob(0);
+    // Lookup an entry, regardless of its freshness, in a single query. When 'withPayload' is false,
+    // the payload is not read. Returns null if there is no such entry.
+    CacheEntry lookup(LecturesController.WHAT what, AelfDate when, boolean withPayload) throws IOException {
+        return lookup(what, when, withPayload, null);
+    }
 
-                Log.i(TAG, "Loaded lecture from cache create_date="+cur.getString(1)+" create_version="+cur.getLong(2));
+    // Same as above. Cancelling the token aborts the query, starting with Jelly Bean.
+    CacheEntry lookup(LecturesController.WHAT what, AelfDate when, boolean withPayload, CancellationToken token) throws IOException {
+        final String key = Integer.toString(computeKey(when));
+        final String office = what.urlName();
+        final String region = getRegion();
+        final String sql = withPayload ? DB_TABLE_GET : DB_TABLE_GET_META;
 
-                try {
-                    ByteArrayInputStream bis = new ByteArrayInputStream(blob);
-                    ObjectInputStream ois = new ObjectInputStream(bis);
+        CancellationToken.throwIfCancelled(token);
+        if (token == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return doLookup(sql, key, office, region, null);
+        }
 
-                    return ois.readObject();
-                } catch (ClassNotFoundException | IOException e) {
-                    throw e;
-                } finally {
-                    cur.close();
+        final CancellationSignal signal = new CancellationSignal();
+        Runnable onCancel = new Runnable() {
+            @Override
+            public void run() {
+                signal.cancel();
+            }
+        };
+        token.addListener(onCancel);
+        try {
+            return doLookup(sql, key, office, region, signal);
+        } finally {
+            token.removeListener(onCancel);
+        }
+    }
+
+    // Readers do not use a transaction: short of read only transactions, which Android only exposes
+    // from API 35, it would wait for the writers. Bodies are immutable and only deleted once no row
+    // references them, so the entry is read again until all of its bodies are found.
+    private CacheEntry doLookup(final String sql, final String key, final String office, final String region, final CancellationSignal signal) throws IOException {
+        return (CacheEntry)retry(new Callable() {
+            @Override
+            public Object call() throws Exception {
+                SQLiteDatabase db = getReadableDatabase();
+                for (int attempt = 1; ; attempt++) {
+                    CacheEntry entry = readEntry(db, sql, key, office, region, signal, attempt == MAX_LOOKUP_ATTEMPTS);
+                    if (entry != REPLACED_ENTRY) {
+                        return entry;
+                    }
                 }
             }
         });
     }
 
-    synchronized boolean has(LecturesController.WHAT what, GregorianCalendar when, GregorianCalendar minLoadDate, Long minLoadVersion) {
-        String key  = computeKey(when);
-        String min_create_date = computeKey(minLoadDate);
-        String min_create_version = String.valueOf(minLoadVersion);
+    // Returns null when there is no row. Returns REPLACED_ENTRY when some of its bodies are missing,
+    // unless this is the 'lastAttempt'.
+    private CacheEntry readEntry(SQLiteDatabase db, String sql, String key, String office, String region, CancellationSignal signal, boolean lastAttempt) throws IOException {
+        // Blobs can not be read from a compiled statement. The query string is constant so that
+        // the connection's own statement cache can still do its job.
+        Cursor cur = signal == null ?
+                db.rawQuery(sql, new String[]{key, office, region}) :
+                db.rawQuery(sql, new String[]{key, office, region}, signal);
+
+        // If there is no result --> exit
+        if(cur == null) {
+            return null;
+        }
 
-        // load from db
-        Log.i(TAG, "Checking if lecture is in cache with create_date>="+min_create_date+" create_version>="+min_create_version);
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cur = null;
+        long createDate;
+        long createVersion;
+        byte[] payload;
+        String etag;
+        String lastModified;
+        String revision;
         try {
-            cur = db.query(
-                    what.toString(),                                           // FROM
-                    new String[]{"date"},                                      // SELECT
-                    "`date`=? AND `create_date` >= ? AND create_version >= ?", // WHERE
-                    new String[]{key, min_create_date, min_create_version},    // params
-                    null, null, null, "1"                                      // GROUP BY, HAVING, ORDER, LIMIT
-            );
-            return cur != null && cur.getCount() > 0;
-        } catch (SQLiteException e) {
-            return false;
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "Illegal state", e);
-            return false;
+            if(!cur.moveToFirst()) {
+                return null;
+            }
+            createDate = cur.getLong(0);
+            createVersion = cur.getLong(1);
+            payload = cur.isNull(2) ? null : cur.getBlob(2);
+            etag = cur.isNull(3) ? null : cur.getString(3);
+            lastModified = cur.isNull(4) ? null : cur.getString(4);
+            revision = cur.isNull(5) ? null : cur.getString(5);
         } finally {
-            if (cur != null) cur.close();
-            close();
+            cur.close();
+        }
+
+        // A writer replaced the row and released its bodies in between: read it again. On the last
+        // attempt, the entry will fail to decode and be loaded again.
+        List<String> refs = LectureItemCodec.references(payload);
+        Map<String, byte[]> bodies = loadBodies(db, refs);
+        if (bodies != null && bodies.size() < refs.size() && !lastAttempt) {
+            return REPLACED_ENTRY;
+        }
+
+        CacheEntry entry = new CacheEntry(createDate, createVersion, payload, bodies);
+        entry.setValidators(etag, lastModified);
+        entry.setRevision(revision);
+        return entry;
+    }
+
+    private static final int MAX_LOOKUP_ATTEMPTS = 3;
+    private static final CacheEntry REPLACED_ENTRY = new CacheEntry(0, 0, null, null);
+
+    // Load the bodies referenced by a payload, in a single query. Missing ones are left out.
+    private static Map<String, byte[]> loadBodies(SQLiteDatabase db, List<String> refs) {
+        if (refs.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < refs.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+
+        Map<String, byte[]> bodies = new HashMap<>(refs.size());
+        Cursor cur = db.rawQuery(String.format(DB_BODIES_GET, placeholders), refs.toArray(new String[refs.size()]));
+        try {
+            while (cur.moveToNext()) {
+                bodies.put(cur.getString(0), cur.getBlob(1));
+            }
+        } finally {
+            cur.close();
+        }
+        return bodies;
+    }
+
+    // Count the bodies referenced by a payload in 'refs', if any. Payloads which can not be decoded
+    // do not reference anything: at worst, a body will be kept for nothing.
+    private static Map<String, Integer> countBodyRefs(Map<String, Integer> refs, byte[] payload) {
+        if (refs == null) {
+            refs = new HashMap<>();
+        }
+
+        try {
+            for (String hash : LectureItemCodec.references(payload)) {
+                Integer count = refs.get(hash);
+                refs.put(hash, count == null ? 1 : count + 1);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to list the bodies referenced by a cache entry", e);
+        }
+        return refs;
+    }
+
+    // Add 'sign' times the counts to the bodies refcount. Must be called with the writer lock held.
+    private void addBodyRefs(Map<String, Integer> refs, int sign) {
+        for (Map.Entry<String, Integer> ref : refs.entrySet()) {
+            SQLiteStatement stmt = getStatement(DB_BODIES_ADD_REF);
+            stmt.bindLong(1, sign * ref.getValue());
+            stmt.bindString(2, ref.getKey());
+            stmt.executeUpdateDelete();
+        }
+    }
+
+    // Count the references to the bodies again, from all the rows, and drop the bodies no row uses.
+    // Meant for migrations: the statement pool is not available yet.
+    private static void rebuildBodyRefs(SQLiteDatabase db) {
+        Map<String, Integer> refs = new HashMap<>();
+        Cursor cur = db.rawQuery("SELECT payload FROM `readings` WHERE payload IS NOT NULL", null);
+        try {
+            while (cur.moveToNext()) {
+                countBodyRefs(refs, cur.getBlob(0));
+            }
+        } finally {
+            cur.close();
+        }
+
+        db.execSQL("UPDATE `bodies` SET refcount = 0");
+        SQLiteStatement stmt = db.compileStatement(DB_BODIES_ADD_REF);
+        try {
+            for (Map.Entry<String, Integer> ref : refs.entrySet()) {
+                stmt.bindLong(1, ref.getValue());
+                stmt.bindString(2, ref.getKey());
+                stmt.executeUpdateDelete();
+            }
+        } finally {
+            stmt.close();
         }
+        db.execSQL(DB_BODIES_PURGE);
     }
 
     /**
      * Internal logic
      */
-    
-    private void createCache(SQLiteDatabase db, LecturesController.WHAT what) {
-        String sql = String.format(DB_TABLE_CREATE, what);
+
+    // Run a PRAGMA. Some of them return a row, which execSQL does not like.
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cur = db.rawQuery("PRAGMA "+pragma, null);
+        try {
+            cur.moveToFirst();
+        } finally {
+            cur.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement stmt, int index, String value) {
+        if (value == null) {
+            stmt.bindNull(index);
+        } else {
+            stmt.bindString(index, value);
+        }
+    }
+
+    private static long pragmaLong(SQLiteDatabase db, String pragma) {
+        Cursor cur = db.rawQuery("PRAGMA "+pragma, null);
+        try {
+            return cur.moveToFirst() ? cur.getLong(0) : 0;
+        } finally {
+            cur.close();
+        }
+    }
+
+    private static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        // Columns: cid, name, type, ...
+        Cursor cur = db.rawQuery("PRAGMA table_info(`"+table+"`)", null);
+        try {
+            while (cur.moveToNext()) {
+                if (column.equals(cur.getString(1))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cur.close();
+        }
+    }
+
+    private void configureConnection(SQLiteDatabase db) {
+        // Only applies to new databases, before the first table is created
+        pragma(db, "page_size = "+DB_PAGE_SIZE);
+        pragma(db, "auto_vacuum = INCREMENTAL");
+
+        // Negative values are in KB, regardless of the page size
+        pragma(db, "cache_size = -"+DB_CACHE_SIZE_KB);
+
+        // Silently ignored by SQLite versions without mmap support
+        pragma(db, "mmap_size = "+DB_MMAP_SIZE);
+
+        // In WAL mode, NORMAL is safe and only syncs on checkpoints
+        pragma(db, "synchronous = NORMAL");
+
+        // The other process may hold the write lock, typically the sync during a batch
+        pragma(db, "busy_timeout = "+DB_BUSY_TIMEOUT_MS);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Only called starting with Jelly Bean
+        configureConnection(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+            configureConnection(db);
+        }
+    }
+
+    private void createLegacyCache(SQLiteDatabase db, LecturesController.WHAT what) {
+        String sql = String.format(DB_LEGACY_TABLE_CREATE, what);
         db.execSQL(sql);
     }
 
+    private void createCache(SQLiteDatabase db) {
+        db.execSQL(DB_TABLE_CREATE);
+        db.execSQL(DB_BODIES_CREATE);
+        db.execSQL(DB_QUEUE_CREATE);
+        db.execSQL(DB_MISSES_CREATE);
+        db.execSQL(DB_AVAILABILITY_CREATE);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
-        for (LecturesController.WHAT what : LecturesController.WHAT.class.getEnumConstants()) {
-            createCache(db, what);
-        }
+        createCache(db);
     }
     
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if(oldVersion <= 1) {
             Log.i(TAG, "Upgrading DB from version 1");
-            createCache(db, LecturesController.WHAT.METAS);
+            createLegacyCache(db, LecturesController.WHAT.METAS);
         }
 
         if(oldVersion <= 2) {
@@ -290,6 +1271,128 @@ final class AelfCacheHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         }
+
+        if(oldVersion <= 3) {
+            // Merge the per office tables into a single table. Legacy rows were not tied to a
+            // region: assign them to the current one, region changes used to invalidate the cache.
+            Log.i(TAG, "Upgrading DB from version 3");
+            String region = getRegion();
+            db.beginTransaction();
+            try {
+                createCache(db);
+                for (LecturesController.WHAT what: LecturesController.WHAT.values()) {
+                    createLegacyCache(db, what);
+                    db.execSQL("INSERT OR REPLACE INTO `readings` (office, date, region, create_date, create_version, payload) " +
+                               "SELECT ?, date, ?, create_date, create_version, lectures FROM `" + what + "`",
+                               new Object[]{what.urlName(), region});
+                    db.execSQL("DROP TABLE `" + what + "`");
+                }
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                throw e;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        if(oldVersion <= 4) {
+            // Shared bodies. Existing rows keep their inline descriptions, only new rows use it.
+            Log.i(TAG, "Upgrading DB from version 4");
+            db.execSQL(DB_BODIES_CREATE);
+        }
+
+        if(oldVersion <= 5) {
+            // Track reads for the retention
+            // Databases migrated from version 3 or older already have it.
+            Log.i(TAG, "Upgrading DB from version 5");
+            if (!hasColumn(db, "readings", "read_date")) {
+                db.execSQL("ALTER TABLE `readings` ADD COLUMN read_date TEXT");
+            }
+        }
+
+        if(oldVersion <= 6) {
+            // HTTP validators
+            Log.i(TAG, "Upgrading DB from version 6");
+            if (!hasColumn(db, "readings", "etag")) {
+                db.execSQL("ALTER TABLE `readings` ADD COLUMN etag TEXT");
+                db.execSQL("ALTER TABLE `readings` ADD COLUMN last_modified TEXT");
+            }
+        }
+
+        if(oldVersion <= 7) {
+            // Manifest revisions
+            Log.i(TAG, "Upgrading DB from version 7");
+            if (!hasColumn(db, "readings", "revision")) {
+                db.execSQL("ALTER TABLE `readings` ADD COLUMN revision TEXT");
+            }
+        }
+
+        if(oldVersion <= 8) {
+            // Persistent sync queue
+            Log.i(TAG, "Upgrading DB from version 8");
+            db.execSQL(DB_QUEUE_CREATE);
+        }
+
+        if(oldVersion <= 9) {
+            // Negative cache
+            Log.i(TAG, "Upgrading DB from version 9");
+            db.execSQL(DB_MISSES_CREATE);
+        }
+
+        if(oldVersion <= 10) {
+            // Availability index, built on first use
+            Log.i(TAG, "Upgrading DB from version 10");
+            db.execSQL(DB_AVAILABILITY_CREATE);
+        }
+
+        if(oldVersion <= 11) {
+            // Integer dates. SQLite can not change the type of a column: copy the rows to a new table.
+            // Rows migrated from version 3 or older may already hold integers. The queue and the
+            // negative cache are short lived, they are simply dropped. So is the availability index,
+            // its stamps changed format.
+            Log.i(TAG, "Upgrading DB from version 11");
+            db.beginTransaction();
+            try {
+                db.execSQL("ALTER TABLE `readings` RENAME TO `readings_v11`");
+                db.execSQL(DB_TABLE_CREATE);
+                db.execSQL("INSERT OR REPLACE INTO `readings` (office, date, region, create_date, create_version, payload, read_date, etag, last_modified, revision) " +
+                           "SELECT office, "+sqlEpochDay("date")+", region, "+sqlTimestamp("create_date")+", create_version, payload, "+sqlEpochDay("read_date")+", etag, last_modified, revision " +
+                           "FROM `readings_v11` WHERE "+sqlEpochDay("date")+" IS NOT NULL");
+                db.execSQL("DROP TABLE `readings_v11`");
+
+                // Dropped and replaced rows did not release their bodies: count them again
+                rebuildBodyRefs(db);
+
+                db.execSQL("DROP TABLE IF EXISTS `sync_queue`");
+                db.execSQL(DB_QUEUE_CREATE);
+                db.execSQL("DROP TABLE IF EXISTS `misses`");
+                db.execSQL(DB_MISSES_CREATE);
+                db.execSQL("DELETE FROM `availability`");
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                throw e;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        if(oldVersion <= 12) {
+            // The lookup index duplicated the one of the UNIQUE constraint, and had to be written on
+            // each store. Databases migrated from version 11 or older already lost it with their table.
+            Log.i(TAG, "Upgrading DB from version 12");
+            db.execSQL("DROP INDEX IF EXISTS `readings_lookup`");
+        }
+    }
+
+    // SQL expression converting a "yyyy-MM-dd" column to days since 1970-01-01. NULL if malformed.
+    private static String sqlEpochDay(String column) {
+        return "(CASE WHEN typeof("+column+")='integer' THEN "+column+" ELSE CAST(julianday("+column+") - 2440587.5 AS INTEGER) END)";
+    }
+
+    // SQL expression converting a "yyyy-MM-dd" column to the timestamp of its first millisecond,
+    // in the local time zone. 0, hence stale, if malformed.
+    private static String sqlTimestamp(String column) {
+        return "(CASE WHEN typeof("+column+")='integer' THEN "+column+" ELSE COALESCE(CAST(strftime('%s', "+column+", 'utc') AS INTEGER) * 1000, 0) END)";
     }
 
 }
\ No newline at end of file
@@ -1,34 +1,182 @@
 package co.epitre.aelf_lectures.data;
 
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 /**
- * This class centralizes all helpers around dates like
+ * A day, in the local time zone. This class centralizes all helpers around dates like
  * - is it today ?
  * - is it this week ?
  * - is it tomorow ?
  * - is it ext sunday ?
  * - ...
+ *
+ * Instances are immutable and backed by the number of days since 1970-01-01: comparisons and day
+ * arithmetic are plain integer operations, regardless of DST changes. Today is cached until the
+ * next midnight and formatters are cached per thread, so that the load and sync paths do not
+ * allocate calendars.
  */
 
-public class AelfDate extends GregorianCalendar {
+public final class AelfDate implements Comparable<AelfDate> {
 
-    // Default constructor
+    private final int epochDay;
+    private final int year;
+    private final int month; // 0 based, like Calendar.MONTH
+    private final int day;
+
+    // Default constructor: today
     public AelfDate() {
-        super();
+        this(today());
     }
 
-    // Date constructor
+    // Date constructor. The month is 0 based, like Calendar.MONTH
     public AelfDate(int year, int month, int day) {
-        super(year, month, day);
+        this(epochDay(year, month + 1, day));
     }
 
-    // Timestamp constructor in milisec
+    // Timestamp constructor in milisec. This is the day of this instant, in the local time zone
     public AelfDate(long timestamp) {
-        super();
-        setTimeInMillis(timestamp);
+        this(epochDay(timestamp));
+    }
+
+    private AelfDate(int epochDay) {
+        this.epochDay = epochDay;
+
+        // Reverse of epochDay, with years starting in March
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int m = mp < 10 ? mp + 3 : mp - 9;
+
+        this.year = yearOfEra + era * 400 + (m <= 2 ? 1 : 0);
+        this.month = m - 1;
+        this.day = dayOfYear - (153 * mp + 2) / 5 + 1;
+    }
+
+    public static AelfDate fromEpochDay(int epochDay) {
+        return new AelfDate(epochDay);
+    }
+
+    //
+    // Epoch days
+    //
+
+    // Days since 1970-01-01, in the proleptic Gregorian calendar. The month is 1 based.
+    static int epochDay(int year, int month, int day) {
+        // Shift the year to start in March, so that the leap day is the last one
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * ((month + 9) % 12) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // Same, for an instant, in the local time zone
+    static int epochDay(long timestamp) {
+        GregorianCalendar calendar = CALENDAR.get();
+        calendar.setTimeInMillis(timestamp);
+        return epochDay(calendar.get(GregorianCalendar.YEAR), calendar.get(GregorianCalendar.MONTH) + 1, calendar.get(GregorianCalendar.DAY_OF_MONTH));
+    }
+
+    // Today, as an epoch day. Only computed again after the next midnight.
+    static int today() {
+        long now = System.currentTimeMillis();
+        long[] cached = todayCache;
+        if (cached == null || now < cached[1] || now >= cached[2]) {
+            int today = epochDay(now);
+            cached = new long[]{today, startOfDay(today), startOfDay(today + 1)};
+            todayCache = cached;
+        }
+        return (int) cached[0];
+    }
+
+    // First instant of this epoch day, in the local time zone
+    private static long startOfDay(int epochDay) {
+        return startOfDay(epochDay, CALENDAR.get().getTimeZone());
+    }
+
+    // Midnight in UTC, shifted by the offset in force at the local midnight. The first guess uses
+    // the offset at the UTC midnight, which is off when DST changes in between. When DST skips
+    // midnight, the day starts at the end of the gap. When it repeats midnight, at the first one.
+    static long startOfDay(int epochDay, TimeZone zone) {
+        long midnight = epochDay * MILLIS_PER_DAY;
+        int offset = zone.getOffset(midnight - zone.getOffset(midnight));
+        long start = midnight - offset;
+
+        int actual = zone.getOffset(start);
+        if (actual != offset) {
+            // No local midnight: both guesses fall on each side of the gap
+            return Math.max(start, midnight - actual);
+        }
+
+        // DST changes are hours apart: the offset a few hours earlier tells of a repeated midnight
+        int earlier = zone.getOffset(start - DST_LOOKBACK_MS);
+        if (earlier > offset && zone.getOffset(midnight - earlier) == earlier) {
+            return midnight - earlier;
+        }
+        return start;
+    }
+
+    private static final long DST_LOOKBACK_MS = 6 * 60 * 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+    // {epoch day, first instant, first instant of the next day}
+    private static volatile long[] todayCache;
+
+    private static final ThreadLocal<GregorianCalendar> CALENDAR = new ThreadLocal<GregorianCalendar>() {
+        @Override
+        protected GregorianCalendar initialValue() {
+            return new GregorianCalendar();
+        }
+    };
+
+    //
+    // Accessors
+    //
+
+    public int toEpochDay() {
+        return epochDay;
+    }
+
+    public int getYear() {
+        return year;
+    }
+
+    // 0 based, like Calendar.MONTH
+    public int getMonth() {
+        return month;
+    }
+
+    public int getDayOfMonth() {
+        return day;
+    }
+
+    // Calendar.SUNDAY to Calendar.SATURDAY. 1970-01-01 was a Thursday.
+    public int getDayOfWeek() {
+        return ((epochDay + 4) % 7 + 7) % 7 + GregorianCalendar.SUNDAY;
+    }
+
+    public int lengthOfMonth() {
+        int next = month == 11 ? epochDay(year + 1, 1, 1) : epochDay(year, month + 2, 1);
+        return next - epochDay(year, month + 1, 1);
+    }
+
+    // First instant of this day, in the local time zone
+    public long getTimeInMillis() {
+        return startOfDay(epochDay);
+    }
+
+    public AelfDate plusDays(int days) {
+        return days == 0 ? this : new AelfDate(epochDay + days);
     }
 
     //
@@ -50,22 +198,22 @@ public class AelfDate extends GregorianCalendar {
 
         if (isWithin7NextDays()) {
             String intro = withDeterminant ? "de " : "";
-            return intro + new SimpleDateFormat(dayFormat).format(getTimeInMillis()) + " prochain";
+            return intro + format(dayFormat, Locale.getDefault()) + " prochain";
         }
 
         if (isWithin7PrevDays()) {
             String intro = withDeterminant ? "de " : "";
-            return intro + new SimpleDateFormat(dayFormat).format(getTimeInMillis()) + " dernier";
+            return intro + format(dayFormat, Locale.getDefault()) + " dernier";
         }
 
-        if (isSameYear(new GregorianCalendar())) {
+        if (isSameYear(new AelfDate())) {
             String intro = withDeterminant ? "du " : "";
-            return intro + new SimpleDateFormat(dayFormat+" d "+monthFormat).format(getTimeInMillis());
+            return intro + format(dayFormat+" d "+monthFormat, Locale.getDefault());
         }
 
         // Long version: be explicit
         String intro = withDeterminant ? "du " : "";
-        return intro + new SimpleDateFormat(dayFormat+" d "+monthFormat+" y").format(getTimeInMillis());
+        return intro + format(dayFormat+" d "+monthFormat+" y", Locale.getDefault());
     }
 
     public String toPrettyString() {
@@ -76,72 +224,124 @@ public class AelfDate extends GregorianCalendar {
         return internalPrettyString("E", "MMM", false);
     }
 
+    // yyyy-MM-dd
     public String toIsoString() {
-        return new SimpleDateFormat("yyyy-MM-dd").format(getTimeInMillis());
+        char[] out = new char[10];
+        writeDigits(out, 0, year, 4);
+        out[4] = '-';
+        writeDigits(out, 5, month + 1, 2);
+        out[7] = '-';
+        writeDigits(out, 8, day, 2);
+        return new String(out);
     }
 
+    // dd/MM/yyyy
     public String toUrlString() {
-        return new SimpleDateFormat("dd/MM/yyyy", Locale.US).format(getTimeInMillis());
+        char[] out = new char[10];
+        writeDigits(out, 0, day, 2);
+        out[2] = '/';
+        writeDigits(out, 3, month + 1, 2);
+        out[5] = '/';
+        writeDigits(out, 6, year, 4);
+        return new String(out);
     }
 
     public String dayName() {
-        return new SimpleDateFormat("EEEE", Locale.FRANCE).format(getTimeInMillis());
+        return format("EEEE", Locale.FRANCE);
     }
 
+    @Override
+    public String toString() {
+        return toIsoString();
+    }
+
+    private static void writeDigits(char[] out, int offset, int value, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    // SimpleDateFormat is neither thread safe nor cheap to build: keep one per thread and pattern
+    private String format(String pattern, Locale locale) {
+        Map<String, SimpleDateFormat> formatters = FORMATTERS.get();
+        String key = pattern+"/"+locale;
+        SimpleDateFormat formatter = formatters.get(key);
+        if (formatter == null) {
+            formatter = new SimpleDateFormat(pattern, locale);
+            formatters.put(key, formatter);
+        }
+        return formatter.format(new Date(getTimeInMillis()));
+    }
+
+    private static final ThreadLocal<Map<String, SimpleDateFormat>> FORMATTERS = new ThreadLocal<Map<String, SimpleDateFormat>>() {
+        @Override
+        protected Map<String, SimpleDateFormat> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
     //
     // High level helpers
     //
 
     public boolean isToday() {
-        GregorianCalendar today = new GregorianCalendar();
-        return isSameDay(today);
+        return epochDay == today();
     }
 
     public boolean isSunday() {
-        return get(GregorianCalendar.DAY_OF_WEEK) == GregorianCalendar.SUNDAY;
+        return getDayOfWeek() == GregorianCalendar.SUNDAY;
     }
 
     public boolean isYesterday() {
-        GregorianCalendar yesterday = new GregorianCalendar();
-        yesterday.add(GregorianCalendar.DAY_OF_YEAR, -1);
-        return isSameDay(yesterday);
+        return epochDay == today() - 1;
     }
 
     public boolean isTomorrow() {
-        GregorianCalendar tomorrow = new GregorianCalendar();
-        tomorrow.add(GregorianCalendar.DAY_OF_YEAR, 1);
-        return isSameDay(tomorrow);
+        return epochDay == today() + 1;
     }
 
+    // One of the 7 days before today
     public boolean isWithin7PrevDays() {
-        GregorianCalendar today = new GregorianCalendar();
-        GregorianCalendar prevWeek = new GregorianCalendar();
-        prevWeek.add(GregorianCalendar.DAY_OF_YEAR, -8);
-        return compareTo(today) < 0 && compareTo(prevWeek) >= 0;
+        int today = today();
+        return epochDay < today && epochDay >= today - 7;
     }
 
+    // Today or one of the 6 next days
     public boolean isWithin7NextDays() {
-        GregorianCalendar today = new GregorianCalendar();
-        GregorianCalendar nextWeek = new GregorianCalendar();
-        nextWeek.add(GregorianCalendar.DAY_OF_YEAR, 7);
-        return compareTo(today) >= 0 && compareTo(nextWeek) < 0;
+        int today = today();
+        return epochDay >= today && epochDay < today + 7;
     }
 
     //
     // Low level helper
     //
 
-    public boolean isSameYear(GregorianCalendar other) {
-        return (get(GregorianCalendar.ERA) == other.get(GregorianCalendar.ERA) &&
-                get(GregorianCalendar.YEAR) == other.get(GregorianCalendar.YEAR));
+    public boolean isSameYear(AelfDate other) {
+        return year == other.year;
+    }
+
+    public boolean isSameDay(AelfDate other) {
+        return epochDay == other.epochDay;
+    }
+
+    // Will return the number of days between self and other. If other is in the past, will be positive
+    public int dayBetween(AelfDate other) {
+        return epochDay - other.epochDay;
+    }
+
+    @Override
+    public int compareTo(AelfDate other) {
+        return epochDay < other.epochDay ? -1 : (epochDay == other.epochDay ? 0 : 1);
     }
 
-    public boolean isSameDay(GregorianCalendar other) {
-        return (isSameYear(other) && get(GregorianCalendar.DAY_OF_YEAR) == other.get(GregorianCalendar.DAY_OF_YEAR));
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof AelfDate && ((AelfDate) other).epochDay == epochDay;
     }
 
-    // Will return the number of days between self and other. If other is in the future, will be positive
-    public long dayBetween(GregorianCalendar other) {
-        return (getTimeInMillis() - other.getTimeInMillis()) / (1000 * 60 * 60 * 24);
+    @Override
+    public int hashCode() {
+        return epochDay;
     }
 }
@@ -0,0 +1,49 @@
+package co.epitre.aelf_lectures.data;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parser for the sync manifest. This is the list of the offices the server knows for a date range,
+ * with their current revision:
+ *
+ * <manifest>
+ *     <office name="messes" date="2018-03-20" revision="..." />
+ *     ...
+ * </manifest>
+ */
+
+final class AelfManifestParser {
+
+    // Returns the revisions by EpitreApi.officeKey. Incomplete entries are ignored.
+    static Map<String, String> parse(InputStream in) throws IOException, XmlPullParserException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(in, null);
+        parser.nextTag();
+
+        parser.require(XmlPullParser.START_TAG, null, "manifest");
+
+        Map<String, String> revisions = new HashMap<>();
+        while (parser.next() != XmlPullParser.END_DOCUMENT) {
+            if (parser.getEventType() != XmlPullParser.START_TAG || !parser.getName().equals("office")) {
+                continue;
+            }
+
+            String office = parser.getAttributeValue(null, "name");
+            String date = parser.getAttributeValue(null, "date");
+            String revision = parser.getAttributeValue(null, "revision");
+            if (office != null && date != null && revision != null) {
+                revisions.put(EpitreApi.officeKey(office, date), revision);
+            }
+        }
+        return revisions;
+    }
+}
@@ -8,7 +8,9 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by jean-tiare on 22/05/17.
@@ -16,25 +18,45 @@ import java.util.List;
 
 public final class AelfRssParser {
 
+    // Receives the items as soon as they are parsed, before the whole feed is
+    public interface ItemListener {
+        void onLectureItem(LectureItem lecture);
+    }
+
     //
     // Entry-Point
     //
 
     public static List<LectureItem> parse(InputStream in) throws IOException, XmlPullParserException {
-        return readFeed(in);
+        return parse(in, null, null);
+    }
+
+    // Same as above, stops as soon as the token is cancelled and streams the items to the listener
+    public static List<LectureItem> parse(InputStream in, CancellationToken token, ItemListener listener) throws IOException, XmlPullParserException {
+        List<LectureItem> lectures = new ArrayList<>();
+        readFeed(in, lectures, null, token, listener);
+        return lectures;
+    }
+
+    // Parse a batch feed, with one channel per office and date, in a single pass. Channels are
+    // identified by their 'office' and 'date' tags. Returns the lectures by EpitreApi.officeKey.
+    public static Map<String, List<LectureItem>> parseBatch(InputStream in) throws IOException, XmlPullParserException {
+        Map<String, List<LectureItem>> offices = new HashMap<>();
+        readFeed(in, null, offices, null, null);
+        return offices;
     }
 
     //
     // Low level RSS Parser
     //
 
-    private static List<LectureItem> readFeed(InputStream in) throws XmlPullParserException, IOException {
+    // Read all channels. Items go to 'lectures' if set, to their channel's entry in 'offices' otherwise.
+    private static void readFeed(InputStream in, List<LectureItem> lectures, Map<String, List<LectureItem>> offices, CancellationToken token, ItemListener listener) throws XmlPullParserException, IOException {
         XmlPullParser parser = Xml.newPullParser();
         parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
         parser.setInput(in, null);
         parser.nextTag();
 
-        List<LectureItem> lectures = new ArrayList<>();
         parser.require(XmlPullParser.START_TAG, null, "rss");
 
         while (parser.next() != XmlPullParser.END_TAG) {
@@ -43,18 +65,25 @@ public final class AelfRssParser {
             }
             String name = parser.getName();
             // Starts by looking for the entry tag
-            if (name.equals("channel")) {
-                readChannel(parser, lectures);
+            if (name.equals("channel") && lectures != null) {
+                readChannel(parser, lectures, token, listener);
+            } else if (name.equals("channel")) {
+                List<LectureItem> channel = new ArrayList<>();
+                String key = readChannel(parser, channel, token, null);
+                if (key != null) {
+                    offices.put(key, channel);
+                }
             } else {
                 skip(parser);
             }
         }
-
-        return lectures;
     }
 
-    private static void readChannel (XmlPullParser parser, List<LectureItem> lectures) throws XmlPullParserException, IOException {
+    // Read the items of a channel. Returns its key, if it has an office and a date, null otherwise.
+    private static String readChannel (XmlPullParser parser, List<LectureItem> lectures, CancellationToken token, ItemListener listener) throws XmlPullParserException, IOException {
         parser.require(XmlPullParser.START_TAG, null, "channel");
+        String office = null;
+        String date = null;
 
         while (parser.next() != XmlPullParser.END_TAG) {
             if (parser.getEventType() != XmlPullParser.START_TAG) {
@@ -63,11 +92,25 @@ public final class AelfRssParser {
             String name = parser.getName();
             // Starts by looking for the entry tag
             if (name.equals("item")) {
-                lectures.add(readEntry(parser));
+                CancellationToken.throwIfCancelled(token);
+                LectureItem lecture = readEntry(parser);
+                lectures.add(lecture);
+                if (listener != null) {
+                    listener.onLectureItem(lecture);
+                }
+            } else if (name.equals("office")) {
+                office = readText(parser);
+            } else if (name.equals("date")) {
+                date = readText(parser);
             } else {
                 skip(parser);
             }
         }
+
+        if (office == null || date == null) {
+            return null;
+        }
+        return EpitreApi.officeKey(office, date);
     }
 
     // item parser
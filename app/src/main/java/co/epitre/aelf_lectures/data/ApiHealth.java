@@ -0,0 +1,166 @@
+package co.epitre.aelf_lectures.data;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Health of the API, as seen from this process:
+ * - latency tracking, to derive the timeouts from the actual network conditions. The smoothed
+ *   round trip time and its variation are tracked like TCP does (RFC 6298).
+ * - a circuit breaker. After FAILURE_THRESHOLD consecutive failures, requests fail fast for a
+ *   while instead of hitting a dead endpoint. Then a single trial request decides whether to go
+ *   back to normal or to stay open, twice as long.
+ *
+ * The state is exposed for diagnostics, see getState and toString.
+ */
+
+public final class ApiHealth {
+    private static final String TAG = "ApiHealth";
+
+    public enum State {
+        CLOSED,    // Healthy, requests go through
+        OPEN,      // Unhealthy, requests fail fast
+        HALF_OPEN, // Probing, a single trial request goes through
+    }
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long MIN_OPEN_MS = 30 * 1000;
+    static final long MAX_OPEN_MS = 10 * 60 * 1000;
+
+    // Timeouts bounds. Defaults apply until the first measure.
+    static final long MIN_CONNECT_TIMEOUT_MS = 5 * 1000;
+    static final long MAX_CONNECT_TIMEOUT_MS = 30 * 1000;
+    static final long MIN_READ_TIMEOUT_MS = 10 * 1000;
+    static final long MAX_READ_TIMEOUT_MS = 60 * 1000;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openUntilMillis = 0;
+    private long openDurationMillis = MIN_OPEN_MS;
+    private boolean trialInProgress = false;
+
+    // Smoothed round trip time and variation, in ms. 0 until the first measure.
+    private long srttMillis = 0;
+    private long rttvarMillis = 0;
+
+    //
+    // Circuit breaker
+    //
+
+    // Throws if the request should not even be attempted. Returns true if the request is the trial
+    // of a half open circuit: its outcome must then be reported, or the trial aborted.
+    synchronized boolean checkAvailable() throws IOException {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() < openUntilMillis) {
+                throw new IOException("API unavailable, circuit breaker is open");
+            }
+            setState(State.HALF_OPEN);
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (trialInProgress) {
+                throw new IOException("API unavailable, circuit breaker is probing");
+            }
+            trialInProgress = true;
+            return true;
+        }
+        return false;
+    }
+
+    // The trial request ended without an outcome (cancelled, unexpected error): let the next
+    // request probe instead.
+    synchronized void onTrialAborted() {
+        trialInProgress = false;
+    }
+
+    synchronized void onSuccess(long rttMillis) {
+        // Latency, RFC 6298
+        if (srttMillis == 0) {
+            srttMillis = rttMillis;
+            rttvarMillis = rttMillis / 2;
+        } else {
+            rttvarMillis = (3 * rttvarMillis + Math.abs(srttMillis - rttMillis)) / 4;
+            srttMillis = (7 * srttMillis + rttMillis) / 8;
+        }
+
+        consecutiveFailures = 0;
+        trialInProgress = false;
+        openDurationMillis = MIN_OPEN_MS;
+        if (state != State.CLOSED) {
+            setState(State.CLOSED);
+        }
+    }
+
+    synchronized void onFailure() {
+        consecutiveFailures++;
+
+        if (state == State.HALF_OPEN) {
+            // Trial failed: back off twice as long
+            trialInProgress = false;
+            openDurationMillis = Math.min(MAX_OPEN_MS, openDurationMillis * 2);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    private void open() {
+        openUntilMillis = System.currentTimeMillis() + openDurationMillis;
+        setState(State.OPEN);
+    }
+
+    private void setState(State state) {
+        Log.w(TAG, "Circuit breaker: "+this.state+" --> "+state+" ("+consecutiveFailures+" consecutive failures)");
+        this.state = state;
+    }
+
+    //
+    // Adaptive timeouts
+    //
+
+    // Connecting is about one round trip (TCP), plus a couple for TLS
+    synchronized long getConnectTimeoutMillis() {
+        if (srttMillis == 0) {
+            return MAX_CONNECT_TIMEOUT_MS;
+        }
+        return clamp(3 * (srttMillis + 4 * rttvarMillis), MIN_CONNECT_TIMEOUT_MS, MAX_CONNECT_TIMEOUT_MS);
+    }
+
+    // Time between 2 reads. Generous: the server may need to build the office first.
+    synchronized long getReadTimeoutMillis() {
+        if (srttMillis == 0) {
+            return MAX_READ_TIMEOUT_MS;
+        }
+        return clamp(4 * (srttMillis + 4 * rttvarMillis), MIN_READ_TIMEOUT_MS, MAX_READ_TIMEOUT_MS);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    //
+    // Diagnostics
+    //
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntilMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized long getSmoothedRttMillis() {
+        return srttMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "state="+getState()+" failures="+consecutiveFailures+" srtt="+srttMillis+"ms rttvar="+rttvarMillis+"ms" +
+                " connect_timeout="+getConnectTimeoutMillis()+"ms read_timeout="+getReadTimeoutMillis()+"ms";
+    }
+}
@@ -0,0 +1,118 @@
+package co.epitre.aelf_lectures.data;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which offices are in the cache, for the current region: one bit per office and epoch day (see
+ * AelfDate.toEpochDay). A second bitset tells which of them are fresh, i.e. were loaded after the
+ * current invalidation stamp (see AelfCacheHelper.freshnessStamp).
+ *
+ * Instances are never modified once published: writers read the persisted index again in their
+ * transaction, so that they see the other process' writes, update and persist it along with the
+ * rows, then publish it. Readers hence answer without any lock nor I/O.
+ */
+
+final class CacheAvailabilityIndex {
+    final String region;
+    final String stamp;
+    private final Map<String, BitSet> present = new HashMap<>();
+    private final Map<String, BitSet> fresh = new HashMap<>();
+
+    CacheAvailabilityIndex(String region, String stamp) {
+        this.region = region;
+        this.stamp = stamp;
+    }
+
+    boolean matches(String region, String stamp) {
+        return this.region.equals(region) && this.stamp.equals(stamp);
+    }
+
+    boolean isPresent(String office, int day) {
+        BitSet bits = present.get(office);
+        return day >= 0 && bits != null && bits.get(day);
+    }
+
+    boolean isFresh(String office, int day) {
+        BitSet bits = fresh.get(office);
+        return day >= 0 && bits != null && bits.get(day);
+    }
+
+    void set(String office, int day, boolean isFresh) {
+        if (day < 0) {
+            return;
+        }
+        bits(present, office).set(day);
+        bits(fresh, office).set(day, isFresh);
+    }
+
+    void clear(String office, int day) {
+        if (day < 0) {
+            return;
+        }
+        bits(present, office).clear(day);
+        bits(fresh, office).clear(day);
+    }
+
+    Iterable<String> offices() {
+        return present.keySet();
+    }
+
+    private static BitSet bits(Map<String, BitSet> map, String office) {
+        BitSet bits = map.get(office);
+        if (bits == null) {
+            bits = new BitSet();
+            map.put(office, bits);
+        }
+        return bits;
+    }
+
+    //
+    // Serialization. Bits are stored from the first present day, rounded down to a byte, which
+    // is stored along. BitSet.toByteArray would be simpler but requires API 19.
+    //
+
+    int base(String office) {
+        BitSet bits = present.get(office);
+        int first = bits == null ? -1 : bits.nextSetBit(0);
+        return first < 0 ? 0 : first & ~7;
+    }
+
+    byte[] presentBytes(String office) {
+        return toBytes(present.get(office), base(office));
+    }
+
+    byte[] freshBytes(String office) {
+        return toBytes(fresh.get(office), base(office));
+    }
+
+    void load(String office, int base, byte[] presentBytes, byte[] freshBytes) {
+        present.put(office, fromBytes(presentBytes, base));
+        fresh.put(office, fromBytes(freshBytes, base));
+    }
+
+    private static byte[] toBytes(BitSet bits, int base) {
+        if (bits == null || bits.length() <= base) {
+            return new byte[0];
+        }
+        byte[] out = new byte[(bits.length() - base + 7) / 8];
+        for (int i = bits.nextSetBit(base); i >= 0; i = bits.nextSetBit(i + 1)) {
+            out[(i - base) >> 3] |= 1 << ((i - base) & 7);
+        }
+        return out;
+    }
+
+    private static BitSet fromBytes(byte[] bytes, int base) {
+        BitSet bits = new BitSet();
+        if (bytes == null) {
+            return bits;
+        }
+        for (int i = 0; i < bytes.length * 8; i++) {
+            if ((bytes[i >> 3] & (1 << (i & 7))) != 0) {
+                bits.set(base + i);
+            }
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,119 @@
+package co.epitre.aelf_lectures.data;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a cache lookup: freshness metadata and, when requested, the raw payload. The payload is
+ * only decoded on the first call to getLectures() so that callers only interested in the age of an
+ * entry never pay for it.
+ */
+
+public final class CacheEntry {
+    private final long createDate; // ms
+    private final long createVersion;
+    private byte[] payload;
+    private Map<String, byte[]> bodies;
+    private String etag = null;
+    private String lastModified = null;
+    private String revision = null;
+    private List<LectureItem> lectures = null;
+    private int weight = -1;
+
+    CacheEntry(long createDate, long createVersion, byte[] payload, Map<String, byte[]> bodies) {
+        this.createDate = createDate;
+        this.createVersion = createVersion;
+        this.payload = payload;
+        this.bodies = bodies;
+    }
+
+    CacheEntry(long createDate, long createVersion, List<LectureItem> lectures) {
+        this.createDate = createDate;
+        this.createVersion = createVersion;
+        this.payload = null;
+        this.lectures = lectures;
+    }
+
+    public long getCreateDate() {
+        return createDate;
+    }
+
+    public long getCreateVersion() {
+        return createVersion;
+    }
+
+    void setValidators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    // HTTP validators of the cached office, if the server sent any
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    void setRevision(String revision) {
+        this.revision = revision;
+    }
+
+    // Revision of the office, as listed in the manifest it was synced from. Null if it was loaded
+    // without a manifest.
+    public String getRevision() {
+        return revision;
+    }
+
+    public boolean hasPayload() {
+        return payload != null || lectures != null;
+    }
+
+    // Dates are timestamps in ms. Entries without one are never fresh.
+    boolean isNewerThan(long minCreateDate, long minCreateVersion) {
+        return createDate > 0 && createDate >= minCreateDate && createVersion >= minCreateVersion;
+    }
+
+    public synchronized List<LectureItem> getLectures() throws IOException {
+        if (lectures == null) {
+            if (payload == null) {
+                throw new IOException("Cache entry was loaded without its payload");
+            }
+            lectures = LectureItemCodec.decode(payload, bodies);
+            payload = null; // not needed anymore
+            bodies = null;
+        }
+        return lectures;
+    }
+
+    // Approximate heap footprint of the decoded lectures, in bytes. Strings are 2 bytes per char
+    // plus a fixed object overhead. Only meaningful once the lectures have been decoded.
+    synchronized int getWeight() {
+        if (weight < 0) {
+            int total = 64;
+            if (lectures != null) {
+                for (LectureItem lecture : lectures) {
+                    total += 64;
+                    total += stringWeight(lecture.key);
+                    total += stringWeight(lecture.longTitle);
+                    total += stringWeight(lecture.shortTitle);
+                    total += stringWeight(lecture.title);
+                    total += stringWeight(lecture.description);
+                    total += stringWeight(lecture.reference);
+                }
+            }
+            weight = total;
+        }
+        return weight;
+    }
+
+    private static int stringWeight(String value) {
+        return value == null ? 0 : 40 + 2 * value.length();
+    }
+}
@@ -0,0 +1,99 @@
+package co.epitre.aelf_lectures.data;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Collection;
+
+/**
+ * Cross-process cache invalidation. The sync runs in its own process, with its own controller and
+ * cache helper: the UI process does not see its writes, except through the database itself.
+ *
+ * After each committed write, the writer broadcasts the keys of the offices it stored, or asks for
+ * a full invalidation after deletions. Other processes of the application then drop these offices
+ * from their in-memory caches. The sending process ignores its own broadcasts.
+ *
+ * Keys are "office/date/region", see key().
+ */
+
+final class CacheInvalidation {
+    private static final String TAG = "CacheInvalidation";
+
+    private static final String ACTION_INVALIDATE = "co.epitre.aelf_lectures.CACHE_INVALIDATE";
+    private static final String EXTRA_KEYS = "keys";
+    private static final String EXTRA_ALL = "all";
+    private static final String EXTRA_PID = "pid";
+
+    interface Listener {
+        // These offices changed in the database
+        void onInvalidate(String[] keys);
+
+        // Any office may have changed in the database
+        void onInvalidateAll();
+    }
+
+    static String key(String office, String date, String region) {
+        return office+"/"+date+"/"+region;
+    }
+
+    // Tell the other processes these offices were written
+    static void notifyWritten(Context ctx, Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        Intent intent = newIntent(ctx);
+        intent.putExtra(EXTRA_KEYS, keys.toArray(new String[keys.size()]));
+        send(ctx, intent);
+    }
+
+    // Tell the other processes any office may have changed, typically after deletions
+    static void notifyAll(Context ctx) {
+        Intent intent = newIntent(ctx);
+        intent.putExtra(EXTRA_ALL, true);
+        send(ctx, intent);
+    }
+
+    // Start listening for the invalidations sent by the other processes
+    static BroadcastReceiver register(Context ctx, final Listener listener) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getIntExtra(EXTRA_PID, -1) == Process.myPid()) {
+                    return;
+                }
+                if (intent.getBooleanExtra(EXTRA_ALL, false)) {
+                    listener.onInvalidateAll();
+                    return;
+                }
+                String[] keys = intent.getStringArrayExtra(EXTRA_KEYS);
+                if (keys != null) {
+                    listener.onInvalidate(keys);
+                }
+            }
+        };
+        ctx.registerReceiver(receiver, new IntentFilter(ACTION_INVALIDATE));
+        return receiver;
+    }
+
+    private static Intent newIntent(Context ctx) {
+        // Restricted to this application, and to running processes
+        Intent intent = new Intent(ACTION_INVALIDATE);
+        intent.setPackage(ctx.getPackageName());
+        intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
+        intent.putExtra(EXTRA_PID, Process.myPid());
+        return intent;
+    }
+
+    private static void send(Context ctx, Intent intent) {
+        try {
+            ctx.sendBroadcast(intent);
+        } catch (RuntimeException e) {
+            // Never fail a write because of the notification
+            Log.w(TAG, "Failed to broadcast cache invalidation", e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package co.epitre.aelf_lectures.data;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Retention engine. Applies a CacheRetentionPolicy to the cache, then gives some of the freed pages
+ * back to the file system. Each step is a short transaction of its own so that a concurrent reader
+ * or sync never waits long for the writer lock.
+ */
+
+final class CacheRetention {
+    private static final String TAG = "CacheRetention";
+
+    // Rows evicted per transaction when over budget
+    static final int EVICTION_CHUNK = 32;
+
+    // Pages given back to the file system per run (8KB each)
+    static final int COMPACT_MAX_PAGES = 1024;
+
+    private CacheRetention() {}
+
+    // Apply the policy. Returns the size of the database on disk, once done.
+    static long apply(AelfCacheHelper cache, CacheRetentionPolicy policy) throws IOException {
+        AelfDate today = new AelfDate();
+
+        // Age
+        int expired = 0;
+        for (LecturesController.WHAT what : LecturesController.WHAT.values()) {
+            int maxAgeDays = policy.getMaxAgeDays(what);
+            if (maxAgeDays == CacheRetentionPolicy.KEEP_FOREVER) {
+                continue;
+            }
+
+            expired += cache.truncateBefore(what, today.plusDays(-maxAgeDays));
+        }
+
+        // Budget. Only past offices are candidates, upcoming ones were synced to be read.
+        int evicted = 0;
+        long usedBytes = cache.getUsedBytes();
+        while (usedBytes > policy.getMaxBytes()) {
+            int count = cache.evictLeastRead(today, EVICTION_CHUNK);
+            if (count == 0) {
+                break;
+            }
+            evicted += count;
+            usedBytes = cache.getUsedBytes();
+        }
+
+        cache.compact(COMPACT_MAX_PAGES);
+        long fileBytes = cache.getFileBytes();
+
+        Log.i(TAG, "Retention: expired="+expired+" evicted="+evicted+" used="+usedBytes+" file="+fileBytes);
+        return fileBytes;
+    }
+}
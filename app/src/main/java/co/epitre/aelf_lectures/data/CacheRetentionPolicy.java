@@ -0,0 +1,37 @@
+package co.epitre.aelf_lectures.data;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * What the cache may keep: a maximum age per office, in days, and a global size budget, in bytes.
+ * When the budget is exceeded, past offices are evicted, never read and least recently read first.
+ */
+
+public final class CacheRetentionPolicy {
+    public static final int KEEP_FOREVER = -1;
+
+    private final long maxBytes;
+    private final int defaultMaxAgeDays;
+    private final Map<LecturesController.WHAT, Integer> maxAgeDays = new EnumMap<>(LecturesController.WHAT.class);
+
+    public CacheRetentionPolicy(long maxBytes, int defaultMaxAgeDays) {
+        this.maxBytes = maxBytes;
+        this.defaultMaxAgeDays = defaultMaxAgeDays;
+    }
+
+    // Override the maximum age of a single office
+    public CacheRetentionPolicy setMaxAgeDays(LecturesController.WHAT what, int days) {
+        maxAgeDays.put(what, days);
+        return this;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    int getMaxAgeDays(LecturesController.WHAT what) {
+        Integer days = maxAgeDays.get(what);
+        return days == null ? defaultMaxAgeDays : days;
+    }
+}
@@ -0,0 +1,148 @@
+package co.epitre.aelf_lectures.data;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffer cache writes and commit them in grouped transactions. This is meant for the sync, which
+ * stores hundreds of offices in a row: each transaction costs at least one fsync.
+ *
+ * Buffered rows are flushed when there are more than MAX_ROWS of them, when the oldest one has been
+ * waiting for MAX_DELAY_MS or when the batch is explicitly flushed. The delay is armed on the
+ * writer thread, so that a batch going quiet is still written and seen by the other processes.
+ *
+ * Rows are encoded on the calling threads, then written by a single writer thread so that loaders
+ * never wait for the database. Only an explicit flush waits for the writes to complete.
+ *
+ * Completed sync tasks are written along with the rows, after them, so that a task is never marked
+ * as done before its office is stored.
+ */
+
+final class CacheWriteBatch {
+    private static final String TAG = "CacheWriteBatch";
+
+    static final int MAX_ROWS = 64;
+    static final long MAX_DELAY_MS = 10 * 1000;
+
+    private final AelfCacheHelper cache;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private List<AelfCacheHelper.PendingWrite> pending = new ArrayList<>();
+    private List<SyncTask> done = new ArrayList<>();
+    private Future<?> delayedFlush = null;
+    private Future<?> lastWrite = null;
+
+    CacheWriteBatch(AelfCacheHelper cache) {
+        this.cache = cache;
+    }
+
+    void add(LecturesController.WHAT what, AelfDate when, List<LectureItem> lectures, String etag, String lastModified, String revision) {
+        // Encode outside of the lock, this is the expensive part
+        AelfCacheHelper.PendingWrite row = new AelfCacheHelper.PendingWrite(what, when, lectures, etag, lastModified, revision);
+
+        synchronized (this) {
+            pending.add(row);
+            submitIfDue();
+        }
+    }
+
+    // Remove the task from the sync queue with the next write
+    synchronized void complete(SyncTask task) {
+        done.add(task);
+        submitIfDue();
+    }
+
+    // Submit when full, otherwise make sure the oldest row is written within MAX_DELAY_MS. Must be
+    // called with the lock held.
+    private void submitIfDue() {
+        if (pending.size() >= MAX_ROWS) {
+            submit();
+            return;
+        }
+        if (delayedFlush != null) {
+            return;
+        }
+
+        try {
+            delayedFlush = writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CacheWriteBatch.this) {
+                        delayedFlush = null;
+                        submit();
+                    }
+                }
+            }, MAX_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Late row, after the final flush
+            submit();
+        }
+    }
+
+    // Write all pending rows and wait for the writer. The batch can not be used anymore afterward.
+    void flush() throws IOException {
+        Future<?> write;
+        synchronized (this) {
+            submit();
+            write = lastWrite;
+        }
+        writer.shutdown();
+
+        if (write == null) {
+            return;
+        }
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Hand the pending rows to the writer. Must be called with the lock held.
+    private void submit() {
+        if (delayedFlush != null) {
+            delayedFlush.cancel(false);
+            delayedFlush = null;
+        }
+        if (pending.isEmpty() && done.isEmpty()) {
+            return;
+        }
+
+        // Rows are dropped even on failure, they will be fetched again on next sync. So are the
+        // completed tasks: they stay in the queue.
+        final List<AelfCacheHelper.PendingWrite> rows = pending;
+        final List<SyncTask> tasks = done;
+        pending = new ArrayList<>();
+        done = new ArrayList<>();
+
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "Flushing "+rows.size()+" cached lectures");
+                try {
+                    cache.storeAll(rows, tasks);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to store lectures batch in cache", e);
+                }
+            }
+        };
+
+        try {
+            lastWrite = writer.submit(write);
+        } catch (RejectedExecutionException e) {
+            // Late row, after the final flush: write it right away
+            write.run();
+        }
+    }
+}
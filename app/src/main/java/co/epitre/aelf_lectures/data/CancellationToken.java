@@ -0,0 +1,69 @@
+package co.epitre.aelf_lectures.data;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancellation of a lecture load, from the UI down to the HTTP call and the SQLite query. Each
+ * layer registers what it needs to abort (an OkHttp call, a CancellationSignal, ...) for the
+ * duration of the blocking operation and checks the token between steps. Cancelled operations
+ * surface as an InterruptedIOException.
+ *
+ * Methods accepting a token also accept null, meaning "not cancellable".
+ */
+
+public final class CancellationToken {
+    private boolean cancelled = false;
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    // Cancel the operation. Registered listeners are called on the calling thread.
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Register a listener, called on cancel. Called immediately if already cancelled.
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public synchronized void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    //
+    // Helpers for the layers below
+    //
+
+    static boolean isCancelled(CancellationToken token) {
+        return token != null && token.isCancelled();
+    }
+
+    static void throwIfCancelled(CancellationToken token) throws InterruptedIOException {
+        if (isCancelled(token)) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+}
@@ -9,8 +9,13 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import co.epitre.aelf_lectures.SyncPrefActivity;
@@ -33,10 +38,20 @@ public final class EpitreApi {
     private static volatile EpitreApi instance = null;
     private SharedPreferences preference = null;
 
+    // Batch support. When the server does not support it, do not try again before this delay.
+    private static final long BATCH_RETRY_DELAY_MS = TimeUnit.HOURS.toMillis(24);
+    private volatile long batchUnsupportedUntil = 0;
+
+    // Same for the sync manifest
+    private volatile long manifestUnsupportedUntil = 0;
+
+    // Concurrent requests per endpoint, whatever the number of loaders
+    static final int MAX_REQUESTS_PER_HOST = 4;
+    private final Map<String, Semaphore> hostPermits = new HashMap<>();
+
     /**
      * HTTP Client
      */
-    private Call call = null;
     private static final OkHttpClient client = new OkHttpClient.Builder()
             .connectTimeout(30, TimeUnit.SECONDS) // Was 60 seconds
             .writeTimeout  (60, TimeUnit.SECONDS) // Was 10 minutes
@@ -44,14 +59,26 @@ public final class EpitreApi {
             .retryOnConnectionFailure(true)
             .build();
 
+    // Timeouts derive from the measured latency. Failed requests are retried with a jittered
+    // exponential backoff, unless the circuit breaker says the API is down.
+    static final int MAX_ATTEMPTS = 3;
+    static final long BACKOFF_BASE_MS = 500;
+    private final ApiHealth health = new ApiHealth();
+    private final Random jitter = new Random();
+
     /**
      * Singleton
      */
 
     private EpitreApi(Context c) {
+        this(PreferenceManager.getDefaultSharedPreferences(c));
+    }
+
+    // Read the configuration, starting with the endpoint, from other preferences. Only meant for tests.
+    EpitreApi(SharedPreferences preference) {
         super();
 
-        preference = PreferenceManager.getDefaultSharedPreferences(c);
+        this.preference = preference;
     }
 
     public static EpitreApi getInstance(Context c) {
@@ -69,9 +96,129 @@ public final class EpitreApi {
      * Requests internals
      */
 
-    private Response InternalGet(String path) throws IOException {
+    private Response InternalGet(String path, Semaphore permits) throws IOException {
+        return InternalGet(path, null, null, null, permits);
+    }
+
+    // Conditional GET when validators are given: the server answers 304 if the content did not change.
+    // Cancelling the token aborts the call, including while reading the response. Each attempt takes
+    // one of 'permits', the one of the returned response must be released once it has been read.
+    private Response InternalGet(String path, String etag, String lastModified, CancellationToken token, Semaphore permits) throws IOException {
         // Load request engine configuration
         boolean pref_nocache = preference.getBoolean("pref_participate_nocache", false);
+
+        String Url = getEndpoint() + path;
+        Log.d(TAG, "Getting "+Url);
+
+        // Build request
+        Request.Builder requestBuilder = new Request.Builder();
+        requestBuilder.url(Url);
+        if (pref_nocache) {
+            requestBuilder.addHeader("x-aelf-nocache", "1");
+        }
+        if (etag != null) {
+            requestBuilder.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            requestBuilder.header("If-Modified-Since", lastModified);
+        }
+        Request request = requestBuilder.build();
+
+        for (int attempt = 1; ; attempt++) {
+            CancellationToken.throwIfCancelled(token);
+
+            // The permit is only held during the attempt, not while backing off. It is handed over
+            // to the caller along with the response.
+            acquirePermit(permits, token);
+            boolean isPermitKept = false;
+            try {
+                boolean isTrial = health.checkAvailable();
+                boolean isReported = false;
+
+                OkHttpClient attemptClient = client.newBuilder()
+                        .connectTimeout(health.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                        .readTimeout(health.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+                        .build();
+                final Call call = attemptClient.newCall(request);
+                Runnable onCancel = new Runnable() {
+                    @Override
+                    public void run() {
+                        call.cancel();
+                    }
+                };
+                if (token != null) {
+                    token.addListener(onCancel);
+                }
+
+                long start = System.nanoTime();
+                try {
+                    Response response = call.execute();
+                    if (response.code() < 500) {
+                        health.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        isReported = true;
+                        isPermitKept = true;
+                        return response;
+                    }
+
+                    // Server side error
+                    health.onFailure();
+                    isReported = true;
+                    if (attempt >= MAX_ATTEMPTS) {
+                        isPermitKept = true;
+                        return response;
+                    }
+                    Log.w(TAG, "HTTP "+response.code()+" on attempt "+attempt+", retrying");
+                    response.close();
+                } catch (IOException e) {
+                    if (call.isCanceled()) {
+                        throw new InterruptedIOException("Cancelled");
+                    }
+                    health.onFailure();
+                    isReported = true;
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    Log.w(TAG, "Request failed on attempt "+attempt+", retrying", e);
+                } finally {
+                    // Reading the body is cancelled by the caller, see getOffice
+                    if (token != null) {
+                        token.removeListener(onCancel);
+                    }
+                    if (isTrial && !isReported) {
+                        health.onTrialAborted();
+                    }
+                }
+            } finally {
+                if (!isPermitKept) {
+                    permits.release();
+                }
+            }
+
+            backoff(attempt, token);
+        }
+    }
+
+    // Wait before the next attempt: BACKOFF_BASE_MS * 2^(attempt-1), +/- 50%
+    private void backoff(int attempt, CancellationToken token) throws IOException {
+        long delay = BACKOFF_BASE_MS << (attempt - 1);
+        synchronized (jitter) {
+            delay = delay / 2 + (long) (jitter.nextDouble() * delay);
+        }
+
+        // Sleep by small steps to notice cancellations
+        long deadline = System.currentTimeMillis() + delay;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                CancellationToken.throwIfCancelled(token);
+                Thread.sleep(Math.min(100, Math.max(1, deadline - System.currentTimeMillis())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private String getEndpoint() {
         boolean pref_beta = preference.getBoolean("pref_participate_beta", false);
         String endpoint = preference.getString("pref_participate_server", "");
 
@@ -84,26 +231,221 @@ public final class EpitreApi {
                 endpoint = endpoint.replaceAll("^(https?://)", "$1beta.");
             }
         }
+        return endpoint;
+    }
 
-        String Url = endpoint + path;
-        Log.d(TAG, "Getting "+Url);
+    // Request slots of the current endpoint
+    private Semaphore hostPermits() {
+        String endpoint = getEndpoint();
+        synchronized (hostPermits) {
+            Semaphore permits = hostPermits.get(endpoint);
+            if (permits == null) {
+                permits = new Semaphore(MAX_REQUESTS_PER_HOST, true);
+                hostPermits.put(endpoint, permits);
+            }
+            return permits;
+        }
+    }
 
-        // Build request
-        Request.Builder requestBuilder = new Request.Builder();
-        requestBuilder.url(Url);
-        if (pref_nocache) {
-            requestBuilder.addHeader("x-aelf-nocache", "1");
+    // Wait for a request slot. Waits by small steps to notice cancellations, like backoff.
+    private static void acquirePermit(Semaphore permits, CancellationToken token) throws IOException {
+        try {
+            while (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                CancellationToken.throwIfCancelled(token);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
         }
-        Request request = requestBuilder.build();
+    }
+
+    private boolean isBatchSupported() {
+        return System.currentTimeMillis() >= batchUnsupportedUntil;
+    }
 
-        return client.newCall(request).execute();
+    private static String join(List<String> items) {
+        StringBuilder joined = new StringBuilder();
+        for (String item : items) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(item);
+        }
+        return joined.toString();
     }
 
     /**
      * Public API
      */
 
+    // Current health of the API, for diagnostics
+    public ApiHealth getHealth() {
+        return health;
+    }
+
+    // Result of a (conditional) office request. 'lectures' is null when the office did not change.
+    public static final class OfficeResult {
+        public final List<LectureItem> lectures;
+        public final String etag;
+        public final String lastModified;
+
+        OfficeResult(List<LectureItem> lectures, String etag, String lastModified) {
+            this.lectures = lectures;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isNotModified() {
+            return lectures == null;
+        }
+    }
+
+    // Key of an office in the result of getOffices
+    public static String officeKey(String office, String date) {
+        return office+"/"+date;
+    }
+
+    // Load several offices, for several dates, in a single request and a single parsing pass. When
+    // the server does not support it or the batch fails, fall back on one request per office.
+    // Offices which could not be loaded are missing from the result, keyed by officeKey.
+    public Map<String, List<LectureItem>> getOffices(List<String> offices, List<String> dates) throws IOException {
+        if (offices.size() * dates.size() > 1 && isBatchSupported()) {
+            Map<String, List<LectureItem>> result = getOfficesBatch(offices, dates);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        Map<String, List<LectureItem>> result = new HashMap<>();
+        for (String date : dates) {
+            for (String office : offices) {
+                try {
+                    result.put(officeKey(office, date), getOffice(office, date));
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to load "+officeKey(office, date), e);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Returns null if the batch failed, the caller then loads the offices one by one. Only the
+    // statuses telling that the server does not support batches stop asking for them for a while.
+    // Cancellations are thrown.
+    private Map<String, List<LectureItem>> getOfficesBatch(List<String> offices, List<String> dates) throws IOException {
+        // Load configuration
+        String path = "/%d/offices.rss?offices=%s&dates=%s&region=%s";
+        int version = preference.getInt("version", -1);
+
+        // Build URL
+        String region = preference.getString(SyncPrefActivity.KEY_PREF_REGION, "romain");
+        path = String.format(Locale.US, path, version, join(offices), join(dates), region);
+
+        // Issue request
+        Semaphore permits = hostPermits();
+        Response response = null;
+        InputStream in = null;
+        try {
+            response = InternalGet(path, permits);
+
+            // Grab response
+            int code = response.code();
+            if (code == 400 || code == 404 || code == 501) {
+                Log.i(TAG, "Batch requests are not supported by the server (HTTP "+code+")");
+                batchUnsupportedUntil = System.currentTimeMillis() + BATCH_RETRY_DELAY_MS;
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                Log.w(TAG, "Batch request failed (HTTP "+code+"), loading the offices one by one");
+                return null;
+            }
+
+            in = response.body().byteStream();
+            return AelfRssParser.parseBatch(in);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            Log.w(TAG, "Batch request failed, loading the offices one by one", e);
+            return null;
+        } catch (Exception e) {
+            // Parse errors included: the offices may still load on their own
+            Log.e(TAG, "Failed to parse batch result, loading the offices one by one", e);
+            return null;
+        } finally {
+            if(in != null) {
+                in.close();
+            }
+            if (response != null) {
+                response.close();
+                permits.release();
+            }
+        }
+    }
+
+    // Load the revisions of all offices from 'from', for 'days' days, keyed by officeKey. Returns
+    // null when the server does not support manifests.
+    public Map<String, String> getManifest(String from, int days) throws IOException {
+        if (System.currentTimeMillis() < manifestUnsupportedUntil) {
+            return null;
+        }
+
+        // Load configuration
+        String path = "/%d/manifest.xml?from=%s&days=%d&region=%s";
+        int version = preference.getInt("version", -1);
+
+        // Build URL
+        String region = preference.getString(SyncPrefActivity.KEY_PREF_REGION, "romain");
+        path = String.format(Locale.US, path, version, from, days, region);
+
+        // Issue request
+        Semaphore permits = hostPermits();
+        Response response = null;
+        InputStream in = null;
+        try {
+            response = InternalGet(path, permits);
+
+            // Grab response
+            int code = response.code();
+            if (code == 400 || code == 404 || code == 501) {
+                Log.i(TAG, "Manifests are not supported by the server (HTTP "+code+")");
+                manifestUnsupportedUntil = System.currentTimeMillis() + BATCH_RETRY_DELAY_MS;
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("Unexpected HTTP status "+code);
+            }
+
+            in = response.body().byteStream();
+            return AelfManifestParser.parse(in);
+        } catch (XmlPullParserException e) {
+            Log.e(TAG, "Failed to parse API result", e);
+            throw new IOException(e);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load manifest from network");
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            if(in != null) {
+                in.close();
+            }
+            if (response != null) {
+                response.close();
+                permits.release();
+            }
+        }
+    }
+
     public List<LectureItem> getOffice(String office, String date) throws IOException {
+        return getOffice(office, date, null, null, null, null).lectures;
+    }
+
+    // Load an office, unless it did not change since the version identified by the validators. When
+    // set, the listener receives the items as they are parsed.
+    public OfficeResult getOffice(String office, String date, String etag, String lastModified, CancellationToken token, AelfRssParser.ItemListener listener) throws IOException {
         // Load configuration
         String path = "/%d/office/%s/%s.rss?region=%s";
         int version = preference.getInt("version", -1);
@@ -113,25 +455,55 @@ public final class EpitreApi {
         path = String.format(Locale.US, path, version, office, date, region);
 
         // Issue request
-        Response response = InternalGet(path);
-
-        // Grab response
+        Semaphore permits = hostPermits();
+        Response response = null;
         InputStream in = null;
+        Runnable onCancel = null;
         try {
+            response = InternalGet(path, etag, lastModified, token, permits);
+
+            // Grab response
+            if (response.code() == 304) {
+                return new OfficeResult(null, etag, lastModified);
+            }
+
+            // Closing the body aborts a blocked read
+            final Response cancellable = response;
+            if (token != null) {
+                onCancel = new Runnable() {
+                    @Override
+                    public void run() {
+                        cancellable.close();
+                    }
+                };
+                token.addListener(onCancel);
+            }
+
             in = response.body().byteStream();
-            return AelfRssParser.parse(in);
+            List<LectureItem> lectures = AelfRssParser.parse(in, token, listener);
+            return new OfficeResult(lectures, response.header("ETag"), response.header("Last-Modified"));
         } catch (XmlPullParserException e) {
             Log.e(TAG, "Failed to parse API result", e);
             throw new IOException(e);
         } catch (IOException e) {
+            if (CancellationToken.isCancelled(token)) {
+                throw new InterruptedIOException("Cancelled");
+            }
             Log.w(TAG, "Failed to load lectures from network");
             throw e;
         } catch (Exception e) {
             throw new IOException(e);
         } finally {
+            if (onCancel != null) {
+                token.removeListener(onCancel);
+            }
             if(in != null) {
                 in.close();
             }
+            if (response != null) {
+                response.close();
+                permits.release();
+            }
         }
     }
 }
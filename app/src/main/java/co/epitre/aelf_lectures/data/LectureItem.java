@@ -39,4 +39,14 @@ public class LectureItem implements Serializable {
         this.description = description;
         this.reference = reference;
     }
+
+    // Raw constructor, used by the cache codec. Fields are expected to be already normalized.
+    LectureItem(String key, String longTitle, String shortTitle, String title, String description, String reference) {
+        this.key = key;
+        this.shortTitle = shortTitle;
+        this.longTitle = longTitle;
+        this.title = title;
+        this.description = description;
+        this.reference = reference;
+    }
 }
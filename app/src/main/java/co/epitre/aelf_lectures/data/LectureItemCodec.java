@@ -0,0 +1,489 @@
+package co.epitre.aelf_lectures.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary codec for the cached offices. This replaces the former Java serialization which was slow
+ * to decode, embedded the class descriptors in each row and broke whenever LectureItem changed.
+ *
+ * Layout (all integers are unsigned varints):
+ * - format version (1 byte)
+ * - number of items
+ * - for each item: key, longTitle, shortTitle, title, description, reference
+ *
+ * Strings are encoded as (length + 1) followed by the UTF-8 bytes. A length of 0 encodes null.
+ *
+ * Compressed entries (FORMAT_DEFLATE_DICT_V1) store the format version, the length of the
+ * uncompressed body, then the body, after the version byte, as raw deflate using a preset
+ * dictionary of frequent liturgical markup and texts. Each row records its own format in its first
+ * byte so that all formats coexist in the cache.
+ *
+ * Shared entries (FORMAT_BINARY_REFS) move the large descriptions (psalms, canticles, hymns, ...)
+ * out of the row, into the bodies table, under the SHA-1 of their content. The payload starts with
+ * the list of referenced hashes so that it can be read without decoding the items. Each description
+ * is then either inline (0, followed by the string) or a reference (index in the list + 1). Bodies
+ * are encoded on their own, as FORMAT_BINARY (raw UTF-8) or FORMAT_DEFLATE_DICT_V1.
+ */
+
+final class LectureItemCodec {
+    static final byte FORMAT_BINARY = 1;
+    static final byte FORMAT_DEFLATE_DICT_V1 = 2;
+    static final byte FORMAT_BINARY_REFS = 3;
+
+    // Store new rows and bodies compressed. Every format is decoded whatever this says: turning it
+    // off neither invalidates the cache nor requires a migration, rows are simply rewritten raw as
+    // they are loaded again.
+    static final boolean COMPRESS = true;
+
+    // Below this size, compression is not worth it
+    private static final int COMPRESSION_THRESHOLD = 256;
+
+    // Below this size (in chars), descriptions are kept inline: a reference would cost more than it saves
+    private static final int SHARED_BODY_THRESHOLD = 512;
+
+    // Sanity limits when decoding: a corrupted length or count must fail, not allocate. Offices are a
+    // few hundred KB at most, and deflate can not expand its input more than 1032 times.
+    private static final int MAX_DECODED_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    private static final int MAX_COUNT = 4096;
+
+    // Smallest encoding of an item: 6 null strings, or 5 and a reference
+    private static final int MIN_ITEM_BYTES = 6;
+
+    // Java serialization stream magic (0xACED). Used to detect rows written by older versions.
+    private static final byte LEGACY_MAGIC_0 = (byte) 0xAC;
+    private static final byte LEGACY_MAGIC_1 = (byte) 0xED;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Preset dictionary. It MUST NEVER CHANGE once released: introduce a new format version instead.
+    // Deflate favors closer matches, so the most frequent snippets come last.
+    private static final byte[] DICTIONARY_V1 = (
+            "<h3>Lecture</h3><h3>Psaume</h3><h3>Cantique</h3><h3>Hymne</h3><h3>Répons</h3>" +
+            "<h3>Parole de Dieu</h3><h3>Intercession</h3><h3>Oraison</h3><h3>Notre Père</h3>" +
+            "<blockquote><p></p></blockquote><small><i></i></small><b><i></i></b><sup>+</sup><sup>*</sup>" +
+            "<div class=\"app-office-navigation\"><a href=\"\"></a></div>" +
+            "Lecture du livre du prophète Isaïe Lecture de la lettre de saint Paul Apôtre aux " +
+            "Évangile de Jésus Christ selon saint Matthieu selon saint Marc selon saint Luc selon saint Jean " +
+            "Acclamation de l'Évangile Alléluia. Alléluia. Parole du Seigneur. Acclamons la Parole de Dieu. " +
+            "Frères, En ce temps-là, Jésus dit à ses disciples : Amen, je vous le dis : " +
+            "Dieu, viens à mon aide, Seigneur, à notre secours. Pour les siècles des siècles. " +
+            "Nous te prions, Seigneur, Par Jésus Christ, ton Fils, notre Seigneur et notre Dieu, " +
+            "qui règne avec toi et le Saint-Esprit, maintenant et pour les siècles des siècles. Amen. " +
+            "Que le Seigneur nous bénisse, qu'il nous garde de tout mal et nous conduise à la vie éternelle. " +
+            "Gloire au Père, et au Fils, et au Saint-Esprit, pour les siècles des siècles. Amen. " +
+            "<span class=\"antienne-title\">Antienne</span> <font color='#cc0000'>R/</font> " +
+            "<font color='#cc0000'>V/</font> <font color='#cc0000'>" +
+            "</font></line><line><span class=\"verse\">" +
+            "</line><line>" +
+            "</line>\n<line>"
+    ).getBytes(UTF8);
+
+    private LectureItemCodec() {}
+
+    //
+    // Encoder
+    //
+
+    static byte[] encode(List<LectureItem> lectures) {
+        return encode(lectures, COMPRESS);
+    }
+
+    // Encode lectures, compressed if asked to and if it is worth it.
+    static byte[] encode(List<LectureItem> lectures, boolean compress) {
+        byte[] raw = encodeBinary(lectures);
+        if (!compress || raw.length < COMPRESSION_THRESHOLD) {
+            return raw;
+        }
+
+        byte[] compressed = compress(raw);
+        return compressed.length < raw.length ? compressed : raw;
+    }
+
+    // Encode lectures, moving the large descriptions to 'bodies' (hash --> encoded body). The rows
+    // are stored as FORMAT_BINARY_REFS if at least one description was moved.
+    static byte[] encode(List<LectureItem> lectures, Map<String, byte[]> bodies) {
+        List<String> refs = new ArrayList<>();
+        Map<String, Integer> refIndex = new HashMap<>();
+        String[] descriptionRefs = new String[lectures.size()];
+
+        for (int i = 0; i < lectures.size(); i++) {
+            String description = lectures.get(i).description;
+            if (description == null || description.length() < SHARED_BODY_THRESHOLD) {
+                continue;
+            }
+
+            byte[] bytes = description.getBytes(UTF8);
+            String hash = hash(bytes);
+            descriptionRefs[i] = hash;
+            if (!refIndex.containsKey(hash)) {
+                refIndex.put(hash, refs.size());
+                refs.add(hash);
+                bodies.put(hash, encodeBody(bytes));
+            }
+        }
+
+        if (refs.isEmpty()) {
+            return encode(lectures);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 * 1024);
+        out.write(FORMAT_BINARY_REFS);
+        writeVarint(out, refs.size());
+        for (String ref : refs) {
+            writeString(out, ref);
+        }
+
+        writeVarint(out, lectures.size());
+        for (int i = 0; i < lectures.size(); i++) {
+            LectureItem lecture = lectures.get(i);
+            writeString(out, lecture.key);
+            writeString(out, lecture.longTitle);
+            writeString(out, lecture.shortTitle);
+            writeString(out, lecture.title);
+            if (descriptionRefs[i] == null) {
+                writeVarint(out, 0);
+                writeString(out, lecture.description);
+            } else {
+                writeVarint(out, refIndex.get(descriptionRefs[i]) + 1);
+            }
+            writeString(out, lecture.reference);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeBody(byte[] bytes) {
+        if (COMPRESS) {
+            byte[] compressed = deflate(FORMAT_DEFLATE_DICT_V1, bytes, 0, bytes.length);
+            if (compressed.length < bytes.length + 1) {
+                return compressed;
+            }
+        }
+
+        byte[] raw = new byte[bytes.length + 1];
+        raw[0] = FORMAT_BINARY;
+        System.arraycopy(bytes, 0, raw, 1, bytes.length);
+        return raw;
+    }
+
+    // Hex encoded SHA-1 of the body
+    private static String hash(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Mandatory on every Java platform
+            throw new IllegalStateException(e);
+        }
+
+        byte[] sum = digest.digest(bytes);
+        StringBuilder hex = new StringBuilder(sum.length * 2);
+        for (byte b : sum) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] encodeBinary(List<LectureItem> lectures) {
+        // Most offices fit in a few dozens of KB. Start reasonably large to avoid re-allocations.
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+
+        out.write(FORMAT_BINARY);
+        writeVarint(out, lectures.size());
+        for (LectureItem lecture : lectures) {
+            writeString(out, lecture.key);
+            writeString(out, lecture.longTitle);
+            writeString(out, lecture.shortTitle);
+            writeString(out, lecture.title);
+            writeString(out, lecture.description);
+            writeString(out, lecture.reference);
+        }
+
+        return out.toByteArray();
+    }
+
+    // Compress a FORMAT_BINARY blob, skipping its version byte
+    private static byte[] compress(byte[] raw) {
+        return deflate(FORMAT_DEFLATE_DICT_V1, raw, 1, raw.length - 1);
+    }
+
+    // Deflate 'length' bytes of 'raw' as: format, uncompressed length, raw deflate stream
+    private static byte[] deflate(byte format, byte[] raw, int offset, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 3 + 16);
+        out.write(format);
+        writeVarint(out, length);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY_V1);
+            deflater.setInput(raw, offset, length);
+            deflater.finish();
+
+            byte[] buffer = new byte[8 * 1024];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    //
+    // Decoder
+    //
+
+    static List<LectureItem> decode(byte[] blob) throws IOException {
+        return decode(blob, null);
+    }
+
+    // Decode lectures. 'bodies' maps the hashes referenced by the entry, if any, to their encoded body.
+    static List<LectureItem> decode(byte[] blob, Map<String, byte[]> bodies) throws IOException {
+        if (blob == null || blob.length == 0) {
+            throw new IOException("Empty cache entry");
+        }
+
+        // Rows written before the binary format was introduced
+        if (blob.length > 1 && blob[0] == LEGACY_MAGIC_0 && blob[1] == LEGACY_MAGIC_1) {
+            return decodeLegacy(blob);
+        }
+
+        switch (blob[0]) {
+            case FORMAT_BINARY:
+                return decodeBinary(blob, 1);
+            case FORMAT_DEFLATE_DICT_V1:
+                return decodeBinary(decompress(blob), 0);
+            case FORMAT_BINARY_REFS:
+                return decodeBinaryRefs(blob, bodies);
+            default:
+                throw new IOException("Unsupported cache entry format: "+blob[0]);
+        }
+    }
+
+    private static byte[] decompress(byte[] blob) throws IOException {
+        Reader reader = new Reader(blob, 1);
+        int length = reader.readVarint();
+        if (length < 0 || length > MAX_DECODED_LENGTH || length / MAX_DEFLATE_RATIO > reader.remaining()) {
+            throw new IOException("Invalid compressed cache entry length: "+length);
+        }
+        byte[] raw = new byte[length];
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY_V1);
+            inflater.setInput(blob, reader.position, blob.length - reader.position);
+            int offset = 0;
+            while (offset < length) {
+                int read = inflater.inflate(raw, offset, length - offset);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                offset += read;
+            }
+            if (offset != length) {
+                throw new IOException("Truncated compressed cache entry");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+
+        return raw;
+    }
+
+    // List the body hashes referenced by an entry, without decoding it. Only FORMAT_BINARY_REFS
+    // entries reference bodies.
+    static List<String> references(byte[] blob) throws IOException {
+        if (blob == null || blob.length == 0 || blob[0] != FORMAT_BINARY_REFS) {
+            return Collections.emptyList();
+        }
+        return readReferences(new Reader(blob, 1));
+    }
+
+    private static List<String> readReferences(Reader reader) throws IOException {
+        int count = reader.readCount(1);
+        List<String> refs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            refs.add(reader.readString());
+        }
+        return refs;
+    }
+
+    private static List<LectureItem> decodeBinaryRefs(byte[] blob, Map<String, byte[]> bodies) throws IOException {
+        Reader reader = new Reader(blob, 1);
+
+        // Resolve the references first, each body is decoded once even if used multiple times
+        List<String> refs = readReferences(reader);
+        String[] descriptions = new String[refs.size()];
+        for (int i = 0; i < descriptions.length; i++) {
+            byte[] body = bodies == null ? null : bodies.get(refs.get(i));
+            if (body == null) {
+                throw new IOException("Missing shared body "+refs.get(i));
+            }
+            descriptions[i] = decodeBody(body);
+        }
+
+        int count = reader.readCount(MIN_ITEM_BYTES);
+        List<LectureItem> lectures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String key = reader.readString();
+            String longTitle = reader.readString();
+            String shortTitle = reader.readString();
+            String title = reader.readString();
+            String description;
+            int ref = reader.readVarint();
+            if (ref == 0) {
+                description = reader.readString();
+            } else if (ref <= descriptions.length) {
+                description = descriptions[ref - 1];
+            } else {
+                throw new IOException("Invalid shared body reference in cache entry");
+            }
+            String reference = reader.readString();
+            lectures.add(new LectureItem(key, longTitle, shortTitle, title, description, reference));
+        }
+
+        return lectures;
+    }
+
+    private static String decodeBody(byte[] body) throws IOException {
+        if (body.length == 0) {
+            throw new IOException("Empty shared body");
+        }
+
+        switch (body[0]) {
+            case FORMAT_BINARY:
+                return new String(body, 1, body.length - 1, UTF8);
+            case FORMAT_DEFLATE_DICT_V1:
+                return new String(decompress(body), UTF8);
+            default:
+                throw new IOException("Unsupported shared body format: "+body[0]);
+        }
+    }
+
+    private static List<LectureItem> decodeBinary(byte[] buffer, int offset) throws IOException {
+        Reader reader = new Reader(buffer, offset);
+        int count = reader.readCount(MIN_ITEM_BYTES);
+        List<LectureItem> lectures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String key = reader.readString();
+            String longTitle = reader.readString();
+            String shortTitle = reader.readString();
+            String title = reader.readString();
+            String description = reader.readString();
+            String reference = reader.readString();
+            lectures.add(new LectureItem(key, longTitle, shortTitle, title, description, reference));
+        }
+
+        return lectures;
+    }
+
+    // cast is not checked when decoding the blob but we where responsible for its creation so... dont care
+    @SuppressWarnings("unchecked")
+    private static List<LectureItem> decodeLegacy(byte[] blob) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(blob));
+        try {
+            return (List<LectureItem>) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException(e);
+        } finally {
+            ois.close();
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            int shift = 0;
+            while (shift < 32) {
+                if (position >= buffer.length) {
+                    throw new IOException("Truncated cache entry");
+                }
+                byte b = buffer[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+            throw new IOException("Malformed varint in cache entry");
+        }
+
+        int remaining() {
+            return buffer.length - position;
+        }
+
+        // Number of entries, each of them using at least 'minBytes' of the remaining input
+        int readCount(int minBytes) throws IOException {
+            int count = readVarint();
+            if (count < 0 || count > MAX_COUNT || count > remaining() / minBytes) {
+                throw new IOException("Invalid count in cache entry: "+count);
+            }
+            return count;
+        }
+
+        String readString() throws IOException {
+            int encodedLength = readVarint();
+            if (encodedLength < 0) {
+                throw new IOException("Invalid string length in cache entry");
+            }
+            int length = encodedLength - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > remaining()) {
+                throw new IOException("Truncated cache entry");
+            }
+
+            String value = new String(buffer, position, length, UTF8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -3,16 +3,29 @@ package co.epitre.aelf_lectures.data;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.GregorianCalendar;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.util.LruCache;
 
 import co.epitre.aelf_lectures.NetworkStatusMonitor;
 import co.epitre.aelf_lectures.R;
@@ -116,9 +129,33 @@ public final class LecturesController {
     private SharedPreferences preference = null;
     private static volatile LecturesController instance = null;
     private AelfCacheHelper cache = null;
+    private volatile CacheWriteBatch cacheWriteBatch = null;
     private EpitreApi api = null;
     Context ctx;
 
+    // In memory tier, on top of the SQLite cache. Holds decoded lectures, weighted by their size.
+    private static final int MEMORY_CACHE_MIN_SIZE = 1024 * 1024;
+    private static final int MEMORY_CACHE_MAX_SIZE = 4 * 1024 * 1024;
+    private final LruCache<String, CacheEntry> memoryCache;
+
+    // Network loads in progress, by memory cache key. Concurrent loads of the same office share a
+    // single request, parse and store.
+    private final Map<String, InFlightLoad> inFlightLoads = new HashMap<>();
+
+    // Best effort cache work which must not block the UI thread, run one task at a time
+    private final ExecutorService background = Executors.newSingleThreadExecutor();
+    private final List<Runnable> availabilityCallbacks = new ArrayList<>();
+    private final Map<String, WhatWhen> pendingReads = new LinkedHashMap<>();
+
+    // Best effort network refreshes, run one at a time, by memory cache key. Kept apart from the
+    // cache work which must not wait for the network.
+    private final ExecutorService refreshes = Executors.newSingleThreadExecutor();
+    private final Set<String> pendingRefreshes = new HashSet<>();
+
+    // How long to trust the server when it says it does not have an office yet. AELF publishes the
+    // offices about a month ahead, a day later the answer may have changed.
+    private static final long NEGATIVE_CACHE_TTL_MS = 24 * 60 * 60 * 1000;
+
     private LecturesController(Context c) {
         super();
 
@@ -126,6 +163,33 @@ public final class LecturesController {
         api = EpitreApi.getInstance(c);
         cache = new AelfCacheHelper(c);
         preference = PreferenceManager.getDefaultSharedPreferences(c);
+
+        // Use at most 1/32th of the heap
+        long memoryBudget = Runtime.getRuntime().maxMemory() / 32;
+        memoryBudget = Math.max(MEMORY_CACHE_MIN_SIZE, Math.min(MEMORY_CACHE_MAX_SIZE, memoryBudget));
+        memoryCache = new LruCache<String, CacheEntry>((int) memoryBudget) {
+            @Override
+            protected int sizeOf(String key, CacheEntry entry) {
+                return entry.getWeight();
+            }
+        };
+
+        // The other process (UI or sync) writes to the same database: drop what it rewrote
+        CacheInvalidation.register(c.getApplicationContext(), new CacheInvalidation.Listener() {
+            @Override
+            public void onInvalidate(String[] keys) {
+                for (String key : keys) {
+                    memoryCache.remove(key);
+                }
+                cache.invalidateAvailability();
+            }
+
+            @Override
+            public void onInvalidateAll() {
+                memoryCache.evictAll();
+                cache.invalidateAvailability();
+            }
+        });
     }
     public static LecturesController getInstance(Context c) {
         if (LecturesController.instance == null) {
@@ -138,35 +202,125 @@ public final class LecturesController {
         return LecturesController.instance;
     }
 
-    public boolean isLecturesInCache(WHAT what, AelfDate when, boolean allowColdCache) {
-        GregorianCalendar minLoadDate = null;
-        long minLoadVersion = allowColdCache ? -1 : preference.getInt("min_cache_version", -1);
+    // Lookup the cache entry for this office, in a single query. Returns null when there is no such
+    // entry or the cache is unusable. The payload is only decoded when calling getLectures on it.
+    public CacheEntry getCacheEntry(WHAT what, AelfDate when, boolean withPayload) {
+        try {
+            return getCacheEntry(what, when, withPayload, null);
+        } catch (InterruptedIOException e) {
+            return null; // Not cancellable
+        }
+    }
 
+    // Same as above, but throws if the token is cancelled
+    private CacheEntry getCacheEntry(WHAT what, AelfDate when, boolean withPayload, CancellationToken token) throws InterruptedIOException {
         try {
-            return cache.has(what, when, minLoadDate, minLoadVersion);
+            return cache.lookup(what, when, withPayload, token);
+        } catch (InterruptedIOException e) {
+            throw e;
         } catch (Exception e) {
-            Log.e(TAG, "Failed to check if lecture is in cache", e);
+            Log.e(TAG, "Failed to lookup lecture in cache", e);
+            return null;
+        }
+    }
+
+    // Is this entry recent enough to be used as is ? A "cold" cache accepts any entry.
+    public boolean isCacheEntryFresh(CacheEntry entry, boolean allowColdCache) {
+        if (entry == null) {
             return false;
         }
+        if (allowColdCache) {
+            return true;
+        }
+
+        long minLoadVersion = preference.getInt(SyncPrefActivity.KEY_APP_CACHE_MIN_VERSION, -1);
+        long minLoadDate = preference.getLong(SyncPrefActivity.KEY_APP_CACHE_MIN_DATE, 0);
+        return entry.isNewerThan(minLoadDate, minLoadVersion);
     }
 
-    public List<LectureItem> loadLecturesFromCache(WHAT what, AelfDate when, boolean allowColdCache) throws IOException {
-        List<LectureItem> lectures;
-        AelfDate minLoadDate = null;
-        long minLoadVersion = -1;
+    // Answered from the availability index, without I/O once it is loaded. A "cold" cache accepts
+    // any entry.
+    public boolean isLecturesInCache(WHAT what, AelfDate when, boolean allowColdCache) {
+        try {
+            CacheAvailabilityIndex index = cache.getAvailability();
+            if (index != null) {
+                int day = when.toEpochDay();
+                return allowColdCache ? index.isPresent(what.urlName(), day) : index.isFresh(what.urlName(), day);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load availability index", e);
+        }
+        return isCacheEntryFresh(getCacheEntry(what, when, false), allowColdCache);
+    }
+
+    // Which of the 'days' days from 'from' are available offline for this office, whatever their
+    // freshness. Answered from the last loaded availability index, without any I/O: this is safe on
+    // the UI thread, but may be outdated, see refreshAvailability. Null if it was never loaded.
+    public boolean[] getOfflineAvailability(WHAT what, AelfDate from, int days) {
+        CacheAvailabilityIndex index = cache.peekAvailability();
+        if (index == null) {
+            return null;
+        }
+
+        boolean[] available = new boolean[days];
+        int first = from.toEpochDay();
+        for (int i = 0; i < days; i++) {
+            available[i] = index.isPresent(what.urlName(), first + i);
+        }
+        return available;
+    }
 
-        if (!allowColdCache) {
-            minLoadVersion = preference.getInt(SyncPrefActivity.KEY_APP_CACHE_MIN_VERSION, -1);
-            minLoadDate = new AelfDate(preference.getLong(SyncPrefActivity.KEY_APP_CACHE_MIN_DATE, 0));
+    // Load the availability index again if needed, in the background. 'onLoaded' is then called on
+    // the UI thread. Concurrent requests are coalesced.
+    public void refreshAvailability(final Runnable onLoaded) {
+        synchronized (availabilityCallbacks) {
+            availabilityCallbacks.add(onLoaded);
+            if (availabilityCallbacks.size() > 1) {
+                return;
+            }
         }
 
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.getAvailability();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to load availability index", e);
+                }
+
+                final List<Runnable> callbacks;
+                synchronized (availabilityCallbacks) {
+                    callbacks = new ArrayList<>(availabilityCallbacks);
+                    availabilityCallbacks.clear();
+                }
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Runnable callback : callbacks) {
+                            callback.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Decode the lectures of a cache entry, if it is fresh enough. Returns null otherwise.
+    private List<LectureItem> loadLecturesFromCacheEntry(CacheEntry entry, boolean allowColdCache) {
+        if (!isCacheEntryFresh(entry, allowColdCache)) {
+            return null;
+        }
+
+        List<LectureItem> lectures;
         try {
-            lectures = cache.load(what, when, minLoadDate, minLoadVersion);
-        } catch (RuntimeException e) {
+            lectures = entry.getLectures();
+        } catch (IOException e) {
             // gracefully recover when DB stream outdated/corrupted by refreshing
             Log.e(TAG, "Loading lecture from cache crashed ! Recovery by refreshing...", e);
             return null;
         }
+        Log.i(TAG, "Loaded lecture from cache create_date="+entry.getCreateDate()+" create_version="+entry.getCreateVersion());
 
         // on error or if cached value looks like an error (not yet in AELF
         // calendar for instance), force reload of live data.
@@ -175,10 +329,14 @@ public final class LecturesController {
         if(lectures != null && !looksLikeError(lectures)) {
             return lectures;
         }
-        
+
         return null;
     }
 
+    public List<LectureItem> loadLecturesFromCache(WHAT what, AelfDate when, boolean allowColdCache) throws IOException {
+        return loadLecturesFromCacheEntry(getCacheEntry(what, when, true), allowColdCache);
+    }
+
     // Last resort: attempt to load the lecture from the static / built-in asset folder
     public List<LectureItem> loadLecturesFromAssets(WHAT what, AelfDate when) {
         String filename = "preloaded-reading/"+what.urlName()+"_"+when.toIsoString()+".rss";
@@ -204,24 +362,175 @@ public final class LecturesController {
         return null;
     }
 
+    // Metadata computed on the device, see LiturgicalCalendar. Only used when the server's
+    // version is not in the cache yet.
+    public List<LectureItem> loadMetasFromCalendar(AelfDate when) {
+        String region = preference.getString(SyncPrefActivity.KEY_PREF_REGION, "romain");
+        return LiturgicalCalendar.getMetas(when, region);
+    }
+
     public List<LectureItem> loadLecturesFromNetwork(WHAT what, AelfDate when) throws IOException {
-        // Load lectures
-        List<LectureItem> lectures = api.getOffice(what.urlName(), when.toIsoString());
+        return loadLecturesFromNetwork(what, when, null, null);
+    }
+
+    // If the same office is already being loaded, wait for this load instead of starting a new one.
+    // The returned list is then shared between the callers. Only the caller actually loading the
+    // office gets its items streamed to its listener.
+    public List<LectureItem> loadLecturesFromNetwork(WHAT what, AelfDate when, CancellationToken token, AelfRssParser.ItemListener listener) throws IOException {
+        String key = getMemoryCacheKey(what, when);
+
+        while (true) {
+            InFlightLoad load;
+            boolean isLeader = false;
+            synchronized (inFlightLoads) {
+                load = inFlightLoads.get(key);
+                if (load == null) {
+                    load = new InFlightLoad();
+                    inFlightLoads.put(key, load);
+                    isLeader = true;
+                }
+            }
+
+            if (!isLeader) {
+                List<LectureItem> lectures = load.await(token);
+                if (!load.isCancelled()) {
+                    return lectures;
+                }
+                // The leading load was cancelled, not this one: try again
+                continue;
+            }
 
-        // Cache lectures
-        if(!looksLikeError(lectures)) {
+            List<LectureItem> lectures = null;
+            IOException error = null;
             try {
-                cache.store(what.urlName(), when.toIsoString(), lectures);
+                EpitreApi.OfficeResult result = api.getOffice(what.urlName(), when.toIsoString(), null, null, token, listener);
+                lectures = result.lectures;
+                cacheLectures(what, when, lectures, result.etag, result.lastModified, null);
+                return lectures;
             } catch (IOException e) {
-                Log.e(TAG, "Failed to store lecture in cache", e);
+                error = e;
+                throw e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+                throw e;
+            } finally {
+                synchronized (inFlightLoads) {
+                    inFlightLoads.remove(key);
+                }
+                load.complete(lectures, error, error != null && CancellationToken.isCancelled(token));
             }
         }
+    }
 
-        return lectures;
+    // Refresh a cached office with a conditional request. When the server confirms it did not
+    // change, only its freshness is updated. When set, 'revision' is the manifest revision to store
+    // along. Returns true if the office was modified.
+    public boolean revalidateLectures(WHAT what, AelfDate when, CacheEntry entry, String revision) throws IOException {
+        EpitreApi.OfficeResult result = api.getOffice(what.urlName(), when.toIsoString(), entry.getEtag(), entry.getLastModified(), null, null);
+        if (!result.isNotModified()) {
+            cacheLectures(what, when, result.lectures, result.etag, result.lastModified, revision);
+            return true;
+        }
+
+        try {
+            cache.touch(what, when, revision);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to refresh lecture in cache", e);
+        }
+        return false;
+    }
+
+    // Returns the last answer of the server for this office if it did not have it yet, and this is
+    // recent enough to be trusted. Returns null otherwise, or on error.
+    public List<LectureItem> loadKnownMissing(WHAT what, AelfDate when) {
+        try {
+            return cache.lookupMiss(what, when);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to lookup negative cache", e);
+            return null;
+        }
+    }
+
+    public boolean isKnownMissing(WHAT what, AelfDate when) {
+        return loadKnownMissing(what, when) != null;
+    }
+
+    // Load the manifest of the 'days' days from 'from': the current revision of each office, keyed
+    // by EpitreApi.officeKey. Returns null when it is not available, the caller then has to fall back
+    // on checking each office.
+    public Map<String, String> loadManifest(AelfDate from, int days) {
+        try {
+            return api.getManifest(from.toIsoString(), days);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load manifest", e);
+            return null;
+        }
+    }
+
+    public Map<WHAT, List<LectureItem>> loadLecturesFromNetwork(List<WHAT> whats, AelfDate when) throws IOException {
+        return loadLecturesFromNetwork(whats, when, null);
+    }
+
+    // Load several offices for the same day, in a single request when the server supports it.
+    // Offices which could not be loaded are missing from the result. When set, 'revisions' are the
+    // manifest revisions to store along with the offices.
+    public Map<WHAT, List<LectureItem>> loadLecturesFromNetwork(List<WHAT> whats, AelfDate when, Map<WHAT, String> revisions) throws IOException {
+        List<String> offices = new ArrayList<>(whats.size());
+        for (WHAT what : whats) {
+            offices.add(what.urlName());
+        }
+
+        String date = when.toIsoString();
+        Map<String, List<LectureItem>> loaded = api.getOffices(offices, Collections.singletonList(date));
+
+        Map<WHAT, List<LectureItem>> result = new EnumMap<>(WHAT.class);
+        for (WHAT what : whats) {
+            List<LectureItem> lectures = loaded.get(EpitreApi.officeKey(what.urlName(), date));
+            if (lectures != null) {
+                cacheLectures(what, when, lectures, null, null, revisions == null ? null : revisions.get(what));
+                result.put(what, lectures);
+            }
+        }
+        return result;
+    }
+
+    private void cacheLectures(WHAT what, AelfDate when, List<LectureItem> lectures, String etag, String lastModified, String revision) {
+        // Errors are only remembered for a while, see loadKnownMissing
+        if (looksLikeError(lectures)) {
+            try {
+                cache.storeMiss(what, when, lectures, System.currentTimeMillis() + NEGATIVE_CACHE_TTL_MS);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to store negative cache entry", e);
+            }
+            return;
+        }
+
+        // Cache lectures. Bulk loads do not go through the memory cache: they would only evict the
+        // lectures actually being read.
+        try {
+            CacheWriteBatch batch = cacheWriteBatch;
+            if (batch != null) {
+                batch.add(what, when, lectures, etag, lastModified, revision);
+            } else {
+                int version = preference.getInt(SyncPrefActivity.KEY_APP_VERSION, -1);
+                memoryCache.put(getMemoryCacheKey(what, when), new CacheEntry(System.currentTimeMillis(), version, lectures));
+                cache.store(what, when, lectures, etag, lastModified, revision);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store lecture in cache", e);
+        }
     }
 
     public List<LectureItem> loadLectures(WHAT what, AelfDate when, boolean useCache) throws IOException {
+        return loadLectures(what, when, useCache, null, null);
+    }
+
+    // Load lectures, from the cache or the network. Cancelling the token aborts the SQLite query,
+    // the HTTP call and the parsing with an InterruptedIOException. When loading from the network,
+    // the listener receives the items as they are parsed, the returned list is still the reference.
+    public List<LectureItem> loadLectures(WHAT what, AelfDate when, boolean useCache, CancellationToken token, AelfRssParser.ItemListener listener) throws IOException {
         List<LectureItem> lectures = null;
+        CacheEntry cacheEntry = null;
         boolean isNetworkAvailable = NetworkStatusMonitor.getInstance().isNetworkAvailable();
 
         // When the network is not available, always try to load from cache, even if outdated.
@@ -230,20 +539,63 @@ public final class LecturesController {
 
             // attempt to load from cache: skip loading indicator (avoids flickering)
             // if the cache consider the lecture as outdated, do not return it: we'll try to reload it
-            lectures = loadLecturesFromCache(what, when, allowColdCache);
+            // The entry is kept to serve as a fallback without querying the cache again.
+            String memoryCacheKey = getMemoryCacheKey(what, when);
+            boolean fromMemory = true;
+            cacheEntry = memoryCache.get(memoryCacheKey);
+            if (!isCacheEntryFresh(cacheEntry, allowColdCache)) {
+                cacheEntry = getCacheEntry(what, when, true, token);
+                fromMemory = false;
+            }
+            lectures = loadLecturesFromCacheEntry(cacheEntry, allowColdCache);
+            if (lectures != null) {
+                memoryCache.put(memoryCacheKey, cacheEntry);
+                if (!fromMemory) {
+                    markRead(what, when);
+                }
+                return lectures;
+            }
+
+            // The server recently said it does not have this office yet: show its answer again
+            lectures = loadKnownMissing(what, when);
             if (lectures != null) {
+                Log.i(TAG, "Office "+memoryCacheKey+" is not published yet, skipping network");
                 return lectures;
             }
         }
 
-        lectures = loadLecturesFromNetwork(what, when);
+        // The metadata is shown right away: the server's version when cached, even if outdated, the
+        // computed one otherwise. The server's version is then refreshed in the background, it
+        // overrides the computed one from the next load.
+        if (what == WHAT.METAS) {
+            if (isNetworkAvailable) {
+                refreshInBackground(what, when);
+            }
+            if (cacheEntry == null) {
+                cacheEntry = getCacheEntry(what, when, true, token);
+            }
+            lectures = loadLecturesFromCacheEntry(cacheEntry, true);
+            if (lectures == null) {
+                lectures = loadLecturesFromAssets(what, when);
+            }
+            if (lectures == null) {
+                lectures = loadMetasFromCalendar(when);
+            }
+            return lectures;
+        }
+
+        lectures = loadLecturesFromNetwork(what, when, token, listener);
+        CancellationToken.throwIfCancelled(token);
 
         // Fallback: cold cache
         if (lectures == null) {
             // Failed to load lectures from network AND we were asked to refresh so attempt
             // a fallback on the cache to avoid the big error message but still display a notification
             // If the cache considers the lecture as outdated, still return it. We are in error recovery now
-            lectures = loadLecturesFromCache(what, when, true);
+            if (cacheEntry == null) {
+                cacheEntry = getCacheEntry(what, when, true, token);
+            }
+            lectures = loadLecturesFromCacheEntry(cacheEntry, true);
         }
 
         // Fallback: static asset
@@ -254,23 +606,219 @@ public final class LecturesController {
         return lectures;
     }
 
-    // re-export cleanup helper
-    public void truncateBefore(GregorianCalendar when) {
-        WHAT[] whatValues = WHAT.values();
+    // Load an office from the network into the cache, in the background. Refreshes of an office
+    // already waiting are coalesced. Failures are only logged.
+    private void refreshInBackground(final WHAT what, final AelfDate when) {
+        final String key = getMemoryCacheKey(what, when);
+        synchronized (pendingRefreshes) {
+            if (!pendingRefreshes.add(key)) {
+                return;
+            }
+        }
 
-        try {
-            for (WHAT whatValue : whatValues) {
-                cache.truncateBefore(whatValue, when);
+        refreshes.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pendingRefreshes) {
+                    pendingRefreshes.remove(key);
+                }
+                try {
+                    loadLecturesFromNetwork(what, when);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to refresh "+key, e);
+                }
             }
+        });
+    }
+
+    // Start grouping cache writes in transactions until endCacheBatch is called. This is meant
+    // for bulk loads like the sync.
+    public synchronized void beginCacheBatch() {
+        if (cacheWriteBatch == null) {
+            cacheWriteBatch = new CacheWriteBatch(cache);
+        }
+    }
+
+    // Write any pending lecture and go back to immediate writes
+    public synchronized void endCacheBatch() {
+        CacheWriteBatch batch = cacheWriteBatch;
+        cacheWriteBatch = null;
+        if (batch == null) {
+            return;
+        }
+
+        try {
+            batch.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store lectures batch in cache", e);
+        }
+    }
+
+    // Remaining tasks of today's sync plan, by priority. Empty when there is none or on error.
+    public List<SyncTask> loadSyncQueue() {
+        try {
+            return cache.loadSyncQueue();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load sync queue", e);
+            return new ArrayList<>();
+        }
+    }
+
+    // Replace the sync queue with a new plan
+    public void planSync(List<SyncTask> tasks) {
+        try {
+            cache.planSync(tasks);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store sync queue", e);
+        }
+    }
+
+    // Checkpoint: this task is done. In a cache batch, this is written after the task's office.
+    public void completeSyncTask(SyncTask task) {
+        CacheWriteBatch batch = cacheWriteBatch;
+        if (batch != null) {
+            batch.complete(task);
+            return;
+        }
+
+        try {
+            cache.storeAll(Collections.<AelfCacheHelper.PendingWrite>emptyList(), Collections.singletonList(task));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to update sync queue", e);
+        }
+    }
+
+    // re-export cleanup helper
+    public void truncateBefore(AelfDate when) {
+        memoryCache.evictAll();
+        try {
+            cache.truncateBefore(when);
         } catch (IOException e) {
             Log.e(TAG, "Failed to truncate lecture from cache", e);
         }
     }
 
+    // Apply the retention policy to the cache. Returns the size of the cache on disk or -1 on error.
+    public long applyRetention(CacheRetentionPolicy policy) {
+        memoryCache.evictAll();
+        try {
+            return CacheRetention.apply(cache, policy);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to apply the cache retention", e);
+            return -1;
+        }
+    }
+
     /**
      * Helpers
      */
 
+    // A network load in progress, see loadLecturesFromNetwork
+    private static final class InFlightLoad {
+        private boolean done = false;
+        private List<LectureItem> lectures = null;
+        private IOException error = null;
+        private boolean cancelled = false;
+
+        // 'cancelled' comes from the token of the leading caller. Any other error, timeouts included,
+        // is passed on to the waiting callers.
+        synchronized void complete(List<LectureItem> lectures, IOException error, boolean cancelled) {
+            this.lectures = lectures;
+            this.error = error;
+            this.cancelled = cancelled;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        // Wait for the load to complete, or for the token to be cancelled. Returns null if the
+        // leading caller cancelled it, see isCancelled.
+        List<LectureItem> await(CancellationToken token) throws IOException {
+            Runnable onCancel = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (InFlightLoad.this) {
+                        InFlightLoad.this.notifyAll();
+                    }
+                }
+            };
+            if (token != null) {
+                token.addListener(onCancel);
+            }
+
+            try {
+                synchronized (this) {
+                    while (!done) {
+                        CancellationToken.throwIfCancelled(token);
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException(e);
+                        }
+                    }
+                    if (cancelled) {
+                        return null;
+                    }
+                    if (error != null) {
+                        throw error;
+                    }
+                    return lectures;
+                }
+            } finally {
+                if (token != null) {
+                    token.removeListener(onCancel);
+                }
+            }
+        }
+    }
+
+    // Memory hits are not tracked: the entry was tracked when it was loaded from the database. This
+    // is best effort and must not wait for the writer lock: reads are recorded in the background,
+    // and reads of the same office queued in the meantime are only recorded once.
+    private void markRead(WHAT what, AelfDate when) {
+        WhatWhen read = new WhatWhen();
+        read.what = what;
+        read.when = when;
+
+        synchronized (pendingReads) {
+            String key = getMemoryCacheKey(what, when);
+            if (pendingReads.containsKey(key)) {
+                return;
+            }
+            pendingReads.put(key, read);
+            if (pendingReads.size() > 1) {
+                return;
+            }
+        }
+
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<WhatWhen> reads;
+                synchronized (pendingReads) {
+                    reads = new ArrayList<>(pendingReads.values());
+                    pendingReads.clear();
+                }
+                for (WhatWhen read : reads) {
+                    try {
+                        cache.markRead(read.what, read.when);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to track lecture read", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private String getMemoryCacheKey(WHAT what, AelfDate when) {
+        String region = preference.getString(SyncPrefActivity.KEY_PREF_REGION, "romain");
+        return CacheInvalidation.key(what.urlName(), when.toIsoString(), region);
+    }
+
     private boolean looksLikeError(List<LectureItem> lectures) {
         // does it look like an error message ? Only simple stupid heuristic for now.
         if(lectures.size() > 1) {
@@ -0,0 +1,398 @@
+package co.epitre.aelf_lectures.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On device liturgical calendar, for the Roman rite. Computes the metadata of any day (season,
+ * week, psalter week, colour and celebration) without the network:
+ * - movable feasts, from the date of Easter
+ * - seasons and their weeks, from Advent, Christmas, Lent and Easter
+ * - fixed solemnities and feasts of the general calendar, plus a few regional ones
+ * - regional transfers of the Epiphany, the Ascension and the Corpus Christi to a Sunday
+ *
+ * Memorials are not computed. The metadata loaded from the server always takes precedence: this is
+ * only shown while it is not in the cache yet, so that the day is displayed without waiting for
+ * the network.
+ *
+ * Days are handled as epoch days, see AelfDate.toEpochDay. Ranks follow the table of
+ * liturgical days: the lower, the more important.
+ */
+
+public final class LiturgicalCalendar {
+
+    public enum Season {
+        ADVENT   ("Temps de l'Avent",       "violet"),
+        CHRISTMAS("Temps de Noël",          "blanc"),
+        ORDINARY ("Temps Ordinaire",        "vert"),
+        LENT     ("Temps du Carême",        "violet"),
+        EASTER   ("Temps Pascal",           "blanc");
+
+        private final String name;
+        private final String color;
+
+        Season(String name, String color) {
+            this.name = name;
+            this.color = color;
+        }
+
+        public String prettyName() {
+            return name;
+        }
+    }
+
+    // A computed liturgical day
+    public static final class Day {
+        public final Season season;
+        public final int week;        // Week in the season, 0 for the days after the Ash Wednesday
+        public final int psalterWeek; // 1 to 4, 0 when the psalms are proper to the day
+        public final String color;
+        public final String celebration; // null for a plain weekday
+        public final int rank;
+
+        Day(Season season, int week, int psalterWeek, String color, String celebration, int rank) {
+            this.season = season;
+            this.week = week;
+            this.psalterWeek = psalterWeek;
+            this.color = color;
+            this.celebration = celebration;
+            this.rank = rank;
+        }
+    }
+
+    // Ranks, from the table of liturgical days
+    static final int RANK_TRIDUUM = 1;
+    static final int RANK_PRIVILEGED = 2;        // Christmas, Epiphany, Ascension, Pentecost, privileged Sundays and days
+    static final int RANK_SOLEMNITY = 3;
+    static final int RANK_PROPER_SOLEMNITY = 4;
+    static final int RANK_FEAST_OF_THE_LORD = 5;
+    static final int RANK_SUNDAY = 6;
+    static final int RANK_FEAST = 7;
+    static final int RANK_PROPER_FEAST = 8;
+    static final int RANK_PRIVILEGED_WEEKDAY = 9;
+    static final int RANK_WEEKDAY = 13;
+
+    // Fixed celebrations: month, day, rank, colour, name, region (null for all of them)
+    private static final Object[][] SANCTORAL = {
+            {1, 25, RANK_FEAST, "blanc", "Conversion de saint Paul", null},
+            {2, 2, RANK_FEAST_OF_THE_LORD, "blanc", "Présentation du Seigneur au Temple", null},
+            {2, 22, RANK_FEAST, "blanc", "Chaire de saint Pierre", null},
+            {3, 19, RANK_SOLEMNITY, "blanc", "Saint Joseph", null},
+            {3, 25, RANK_SOLEMNITY, "blanc", "Annonciation du Seigneur", null},
+            {4, 25, RANK_FEAST, "rouge", "Saint Marc", null},
+            {5, 3, RANK_FEAST, "rouge", "Saint Philippe et saint Jacques", null},
+            {5, 14, RANK_FEAST, "rouge", "Saint Matthias", null},
+            {5, 31, RANK_FEAST, "blanc", "Visitation de la Vierge Marie", null},
+            {6, 24, RANK_SOLEMNITY, "blanc", "Nativité de saint Jean-Baptiste", null},
+            {6, 29, RANK_SOLEMNITY, "rouge", "Saint Pierre et saint Paul", null},
+            {7, 3, RANK_FEAST, "rouge", "Saint Thomas", null},
+            {7, 25, RANK_FEAST, "rouge", "Saint Jacques", null},
+            {8, 6, RANK_FEAST_OF_THE_LORD, "blanc", "Transfiguration du Seigneur", null},
+            {8, 10, RANK_FEAST, "rouge", "Saint Laurent", null},
+            {8, 15, RANK_SOLEMNITY, "blanc", "Assomption de la Vierge Marie", null},
+            {8, 24, RANK_FEAST, "rouge", "Saint Barthélemy", null},
+            {9, 8, RANK_FEAST, "blanc", "Nativité de la Vierge Marie", null},
+            {9, 14, RANK_FEAST_OF_THE_LORD, "rouge", "La Croix Glorieuse", null},
+            {9, 21, RANK_FEAST, "rouge", "Saint Matthieu", null},
+            {9, 25, RANK_PROPER_SOLEMNITY, "blanc", "Saint Nicolas de Flüe", "suisse"},
+            {9, 26, RANK_PROPER_FEAST, "rouge", "Saints Jean de Brébeuf, Isaac Jogues et leurs compagnons", "canada"},
+            {9, 29, RANK_FEAST, "blanc", "Saint Michel, saint Gabriel et saint Raphaël", null},
+            {10, 18, RANK_FEAST, "rouge", "Saint Luc", null},
+            {10, 28, RANK_FEAST, "rouge", "Saint Simon et saint Jude", null},
+            {11, 1, RANK_SOLEMNITY, "blanc", "Tous les Saints", null},
+            {11, 2, RANK_SOLEMNITY, "violet", "Commémoration de tous les fidèles défunts", null},
+            {11, 9, RANK_FEAST_OF_THE_LORD, "blanc", "Dédicace de la basilique du Latran", null},
+            {11, 30, RANK_FEAST, "rouge", "Saint André", null},
+            {12, 8, RANK_SOLEMNITY, "blanc", "Immaculée Conception de la Vierge Marie", null},
+            {12, 26, RANK_FEAST, "rouge", "Saint Étienne", null},
+            {12, 27, RANK_FEAST, "blanc", "Saint Jean", null},
+            {12, 28, RANK_FEAST, "rouge", "Les saints Innocents", null},
+    };
+
+    // Movable feasts of a given year, as epoch days
+    private static final class Year {
+        final int adventStart;     // First Sunday of Advent
+        final int christmas;
+        final int previousChristmas;
+        final int epiphany;
+        final int baptism;
+        final int ashWednesday;
+        final int easter;
+        final int ascension;
+        final int pentecost;
+        final int corpusChristi;
+
+        Year(int year, String region) {
+            boolean isRoman = region == null || region.equals("romain");
+
+            christmas = AelfDate.epochDay(year, 12, 25);
+            previousChristmas = AelfDate.epochDay(year - 1, 12, 25);
+            adventStart = sundayBefore(christmas) - 21;
+
+            // Outside of the Roman calendar, the Epiphany is the Sunday between January 2 and 8. The
+            // Baptism is then the next day if the Epiphany is on the 7th or the 8th.
+            if (isRoman) {
+                epiphany = AelfDate.epochDay(year, 1, 6);
+                baptism = sundayOnOrAfter(epiphany + 1);
+            } else {
+                epiphany = sundayOnOrAfter(AelfDate.epochDay(year, 1, 2));
+                baptism = epiphany - AelfDate.epochDay(year, 1, 1) >= 6 ? epiphany + 1 : epiphany + 7;
+            }
+
+            easter = easter(year);
+            ashWednesday = easter - 46;
+            ascension = region != null && region.equals("canada") ? easter + 42 : easter + 39;
+            pentecost = easter + 49;
+            corpusChristi = isRoman ? easter + 60 : easter + 63;
+        }
+    }
+
+    //
+    // Entry-Point
+    //
+
+    // Metadata for this day, as an "informations" office
+    public static List<LectureItem> getMetas(AelfDate when, String region) {
+        Day day = getDay(when, region);
+
+        StringBuilder description = new StringBuilder();
+        if (day.celebration != null) {
+            description.append("<p>Jour liturgique : <strong>").append(day.celebration).append("</strong></p>");
+        }
+        description.append("<p>Temps liturgique : ").append(day.season.prettyName());
+        if (day.week > 0) {
+            description.append(", ").append(ordinal(day.week)).append(" semaine");
+        }
+        description.append("</p>");
+        if (day.psalterWeek > 0) {
+            description.append("<p>Psautier : semaine ").append(roman(day.psalterWeek)).append("</p>");
+        }
+        description.append("<p>Couleur liturgique : ").append(day.color).append("</p>");
+
+        String title = day.celebration != null ? day.celebration : day.season.prettyName();
+        List<LectureItem> lectures = new ArrayList<>(1);
+        lectures.add(new LectureItem("informations", "Informations: "+title, description.toString(), null));
+        return lectures;
+    }
+
+    public static Day getDay(AelfDate when, String region) {
+        int d = when.toEpochDay();
+        int year = when.getYear();
+        Year y = new Year(year, region);
+
+        Day temporal = getTemporalDay(d, y);
+        Object[] sanctoral = getSanctoral(d, year, region, y);
+        if (sanctoral != null && (Integer) sanctoral[2] < temporal.rank) {
+            return new Day(temporal.season, temporal.week, temporal.psalterWeek, (String) sanctoral[3], (String) sanctoral[4], (Integer) sanctoral[2]);
+        }
+        return temporal;
+    }
+
+    //
+    // Temporal cycle
+    //
+
+    private static Day getTemporalDay(int d, Year y) {
+        int dow = dayOfWeek(d);
+        boolean isSunday = dow == 0;
+
+        // Advent
+        if (d >= y.adventStart && d < y.christmas) {
+            int week = (d - y.adventStart) / 7 + 1;
+            String color = isSunday && week == 3 ? "rose" : Season.ADVENT.color;
+            int rank = isSunday ? RANK_PRIVILEGED : d >= y.christmas - 8 ? RANK_PRIVILEGED_WEEKDAY : RANK_WEEKDAY;
+            return new Day(Season.ADVENT, week, psalter(week), color, isSunday ? ordinal(week)+" dimanche de l'Avent" : null, rank);
+        }
+
+        // Christmas, from December 25 to the Baptism of the Lord
+        if (d >= y.christmas) {
+            return getChristmasDay(d, y.christmas);
+        }
+        if (d <= y.baptism) {
+            if (d == y.baptism) {
+                return new Day(Season.CHRISTMAS, 0, 0, Season.CHRISTMAS.color, "Baptême du Seigneur", RANK_FEAST_OF_THE_LORD);
+            }
+            if (d == y.epiphany) {
+                return new Day(Season.CHRISTMAS, 0, 0, Season.CHRISTMAS.color, "Épiphanie du Seigneur", RANK_PRIVILEGED);
+            }
+            return getChristmasDay(d, y.previousChristmas);
+        }
+
+        // Ordinary Time, before Lent. Weeks start on the Monday after the Baptism.
+        if (d < y.ashWednesday) {
+            int week = (d - sundayOnOrBefore(y.baptism)) / 7 + 1;
+            return ordinaryDay(week, isSunday);
+        }
+
+        // Lent and the Holy Week
+        if (d < y.easter) {
+            return getLentDay(d, y, isSunday);
+        }
+
+        // Easter Time
+        if (d <= y.pentecost) {
+            return getEasterDay(d, y, isSunday);
+        }
+
+        // Ordinary Time, after Pentecost. Counted backward from Christ the King, in the 34th week.
+        int week = 34 - (y.adventStart - 1 - d) / 7;
+        if (d == y.pentecost + 7) {
+            return new Day(Season.ORDINARY, week, psalter(week), "blanc", "La Sainte Trinité", RANK_SOLEMNITY);
+        } else if (d == y.corpusChristi) {
+            return new Day(Season.ORDINARY, week, psalter(week), "blanc", "Le Saint-Sacrement du Corps et du Sang du Christ", RANK_SOLEMNITY);
+        } else if (d == y.easter + 68) {
+            return new Day(Season.ORDINARY, week, psalter(week), "blanc", "Le Sacré-Cœur de Jésus", RANK_SOLEMNITY);
+        } else if (d == y.adventStart - 7) {
+            return new Day(Season.ORDINARY, week, psalter(week), "blanc", "Le Christ, Roi de l'univers", RANK_SOLEMNITY);
+        }
+        return ordinaryDay(week, isSunday);
+    }
+
+    private static Day ordinaryDay(int week, boolean isSunday) {
+        String name = isSunday ? ordinal(week)+" dimanche du Temps Ordinaire" : null;
+        return new Day(Season.ORDINARY, week, psalter(week), Season.ORDINARY.color, name, isSunday ? RANK_SUNDAY : RANK_WEEKDAY);
+    }
+
+    private static Day getChristmasDay(int d, int christmas) {
+        // Holy Family: Sunday within the octave, December 30 if there is none
+        int holyFamily = dayOfWeek(christmas) == 0 ? christmas + 5 : sundayOnOrAfter(christmas + 1);
+
+        if (d == christmas) {
+            return new Day(Season.CHRISTMAS, 0, 0, Season.CHRISTMAS.color, "Nativité du Seigneur", RANK_PRIVILEGED);
+        } else if (d == holyFamily) {
+            return new Day(Season.CHRISTMAS, 0, 0, Season.CHRISTMAS.color, "La Sainte Famille", RANK_FEAST_OF_THE_LORD);
+        } else if (d == christmas + 7) {
+            return new Day(Season.CHRISTMAS, 0, 0, Season.CHRISTMAS.color, "Sainte Marie, Mère de Dieu", RANK_SOLEMNITY);
+        } else if (d < christmas + 7) {
+            return new Day(Season.CHRISTMAS, 0, 0, Season.CHRISTMAS.color, "Octave de la Nativité", RANK_PRIVILEGED_WEEKDAY);
+        }
+
+        boolean isSunday = dayOfWeek(d) == 0;
+        return new Day(Season.CHRISTMAS, 0, psalterAfterChristmas(d, christmas), Season.CHRISTMAS.color,
+                isSunday ? "2e dimanche après la Nativité" : null, isSunday ? RANK_SUNDAY : RANK_WEEKDAY);
+    }
+
+    private static Day getLentDay(int d, Year y, boolean isSunday) {
+        int palmSunday = y.easter - 7;
+
+        if (d >= y.easter - 3) {
+            String name = d == y.easter - 3 ? "Jeudi Saint" : d == y.easter - 2 ? "Vendredi Saint" : "Samedi Saint";
+            String color = d == y.easter - 2 ? "rouge" : d == y.easter - 3 ? "blanc" : Season.LENT.color;
+            return new Day(Season.LENT, 0, 0, color, name, RANK_TRIDUUM);
+        }
+        if (d >= palmSunday) {
+            String name = d == palmSunday ? "Dimanche des Rameaux et de la Passion" : "Semaine Sainte";
+            return new Day(Season.LENT, 6, psalter(6), d == palmSunday ? "rouge" : Season.LENT.color, name, RANK_PRIVILEGED);
+        }
+
+        // The days after the Ash Wednesday are in the 4th week of the psalter
+        if (d < y.ashWednesday + 4) {
+            String name = d == y.ashWednesday ? "Mercredi des Cendres" : null;
+            return new Day(Season.LENT, 0, 4, Season.LENT.color, name, d == y.ashWednesday ? RANK_PRIVILEGED : RANK_PRIVILEGED_WEEKDAY);
+        }
+
+        int week = (d - (y.ashWednesday + 4)) / 7 + 1;
+        String color = isSunday && week == 4 ? "rose" : Season.LENT.color;
+        return new Day(Season.LENT, week, psalter(week), color, isSunday ? ordinal(week)+" dimanche de Carême" : null, isSunday ? RANK_PRIVILEGED : RANK_PRIVILEGED_WEEKDAY);
+    }
+
+    private static Day getEasterDay(int d, Year y, boolean isSunday) {
+        int week = (d - y.easter) / 7 + 1;
+
+        if (d == y.easter) {
+            return new Day(Season.EASTER, 1, 0, Season.EASTER.color, "Dimanche de Pâques", RANK_TRIDUUM);
+        } else if (d < y.easter + 7) {
+            return new Day(Season.EASTER, 1, 0, Season.EASTER.color, "Octave de Pâques", RANK_PRIVILEGED);
+        } else if (d == y.ascension) {
+            return new Day(Season.EASTER, week, psalter(week), Season.EASTER.color, "Ascension du Seigneur", RANK_PRIVILEGED);
+        } else if (d == y.pentecost) {
+            return new Day(Season.EASTER, week, 0, "rouge", "Pentecôte", RANK_PRIVILEGED);
+        }
+        String name = isSunday ? ordinal(week)+" dimanche de Pâques" : null;
+        return new Day(Season.EASTER, week, psalter(week), Season.EASTER.color, name, isSunday ? RANK_PRIVILEGED : RANK_WEEKDAY);
+    }
+
+    //
+    // Sanctoral cycle
+    //
+
+    // The fixed celebration of this day, if any. Solemnities impeded by a privileged day are
+    // transferred to the next free day.
+    private static Object[] getSanctoral(int d, int year, String region, Year y) {
+        Object[] celebration = null;
+        for (Object[] entry : SANCTORAL) {
+            if (entry[5] != null && !entry[5].equals(region)) {
+                continue;
+            }
+
+            int date = AelfDate.epochDay(year, (Integer) entry[0], (Integer) entry[1]);
+            int rank = (Integer) entry[2];
+            if (rank <= RANK_PROPER_SOLEMNITY) {
+                while (getTemporalDay(date, y).rank <= RANK_PRIVILEGED) {
+                    date++;
+                }
+            }
+            if (date == d && (celebration == null || rank < (Integer) celebration[2])) {
+                celebration = entry;
+            }
+        }
+        return celebration;
+    }
+
+    //
+    // Helpers
+    //
+
+    // Sunday is 0. 1970-01-01 was a Thursday.
+    static int dayOfWeek(int d) {
+        return ((d + 4) % 7 + 7) % 7;
+    }
+
+    private static int sundayOnOrAfter(int d) {
+        return d + (7 - dayOfWeek(d)) % 7;
+    }
+
+    private static int sundayOnOrBefore(int d) {
+        return d - dayOfWeek(d);
+    }
+
+    private static int sundayBefore(int d) {
+        return sundayOnOrBefore(d - 1);
+    }
+
+    // Anonymous Gregorian algorithm
+    static int easter(int year) {
+        int a = year % 19;
+        int b = year / 100;
+        int c = year % 100;
+        int d = b / 4;
+        int e = b % 4;
+        int f = (b + 8) / 25;
+        int g = (b - f + 1) / 3;
+        int h = (19 * a + b - d - g + 15) % 30;
+        int i = c / 4;
+        int k = c % 4;
+        int l = (32 + 2 * e + 2 * i - h - k) % 7;
+        int m = (a + 11 * h + 22 * l) / 451;
+        int month = (h + l - 7 * m + 114) / 31;
+        int day = (h + l - 7 * m + 114) % 31 + 1;
+        return AelfDate.epochDay(year, month, day);
+    }
+
+    private static int psalter(int week) {
+        return (week - 1) % 4 + 1;
+    }
+
+    // After the octave, the psalter restarts with the week of the Sunday following Christmas
+    private static int psalterAfterChristmas(int d, int christmas) {
+        return psalter((d - sundayOnOrAfter(christmas + 1)) / 7 + 1);
+    }
+
+    private static String ordinal(int n) {
+        return n == 1 ? "1er" : n+"e";
+    }
+
+    private static String roman(int n) {
+        return new String[]{"", "I", "II", "III", "IV"}[n];
+    }
+}
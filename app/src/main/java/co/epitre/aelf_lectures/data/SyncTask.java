@@ -0,0 +1,23 @@
+package co.epitre.aelf_lectures.data;
+
+/**
+ * An office to sync, as stored in the persistent sync queue. The lower the priority, the sooner
+ * it is synced.
+ */
+
+public final class SyncTask {
+    public final LecturesController.WHAT what;
+    public final AelfDate when;
+    public final int priority;
+
+    public SyncTask(LecturesController.WHAT what, AelfDate when, int priority) {
+        this.what = what;
+        this.when = when;
+        this.priority = priority;
+    }
+
+    @Override
+    public String toString() {
+        return what.urlName()+"/"+when.toIsoString()+" (priority "+priority+")";
+    }
+}
@@ -1,7 +1,5 @@
 package co.epitre.aelf_lectures.data;
 
-import java.util.GregorianCalendar;
-
 /**
  * Created by jean-tiare on 11/03/17.
  */
@@ -17,7 +15,7 @@ public class WhatWhen {
     public String anchor = null;
 
     public String toTrackerName() {
-        return what.urlName()+"."+when.dayBetween(new GregorianCalendar());
+        return what.urlName()+"."+when.dayBetween(new AelfDate());
     }
 
     public String toUrlName() {
@@ -1,15 +1,33 @@
 package co.epitre.aelf_lectures.sync;
 
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.TimeUnit;
 
 import co.epitre.aelf_lectures.NetworkStatusMonitor;
 import co.epitre.aelf_lectures.R;
 import co.epitre.aelf_lectures.SyncPrefActivity;
 import co.epitre.aelf_lectures.data.AelfDate;
+import co.epitre.aelf_lectures.data.ApiHealth;
+import co.epitre.aelf_lectures.data.CacheEntry;
+import co.epitre.aelf_lectures.data.CacheRetentionPolicy;
+import co.epitre.aelf_lectures.data.EpitreApi;
+import co.epitre.aelf_lectures.data.LectureItem;
 import co.epitre.aelf_lectures.data.LecturesController;
+import co.epitre.aelf_lectures.data.SyncTask;
 
 import android.accounts.Account;
 import android.annotation.TargetApi;
@@ -37,6 +55,17 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     NetworkStatusMonitor networkStatusMonitor;
 
     private static final long MAX_RUN_TIME = TimeUnit.MINUTES.toMillis(30);
+    private static final int MAX_IO_ERRORS = 10;
+
+    // Days synced in parallel. Requests are further limited per host by EpitreApi.
+    private static final int SYNC_WORKERS = 4;
+
+    // Sync queue priorities, lower first. See syncPriority.
+    private static final int PRIORITY_TODAY_MASS = 0;
+    private static final int PRIORITY_TODAY = 1;
+    private static final int PRIORITY_TOMORROW = 2;
+    private static final int PRIORITY_NEXT_SUNDAY = 3;
+    private static final int PRIORITY_LATER = 4;
 
     /**
      * Constructor. Obtains handle to content resolver for later use.
@@ -58,40 +87,287 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         super(context, autoInitialize, allowParallelSyncs);
     }
 
-    // Sync one reading for the day, if it is not yet in the cache or is in the current week.
-    private void syncReading(LecturesController.WHAT what, AelfDate when, SyncResult syncResult) throws InterruptedException {
-        // Do we need to refresh
-        if (mController.isLecturesInCache(what, when, false)) {
-            if (when.isWithin7NextDays()) {
-                // We always load for this week to allow corrections made by volunteers to
-                // eventually reach the phones.
-                Log.i(TAG, what.urlName()+" for "+when.toIsoString()+" REFRESHING (<7 days)");
-            } else {
-                // This is more than a week ahead and we already have a version in the cache
-                Log.i(TAG, what.urlName()+" for "+when.toIsoString()+" SKIPPED");
+    // Sync one reading. When the manifest lists it, it is loaded only if its revision differs from
+    // the cached one, whatever the date. Otherwise, it is loaded if it is not yet in the cache or is
+    // in the current week and not known to be unpublished yet. Cached readings of the current week
+    // are revalidated right away, the others are added to 'toLoad', with their revision if any. Tasks
+    // which need no load are checkpointed.
+    private void syncReading(SyncTask task, List<SyncTask> toLoad, Map<LecturesController.WHAT, String> revisions, Map<String, String> manifest, SyncResult syncResult) throws InterruptedException {
+        LecturesController.WHAT what = task.what;
+        AelfDate when = task.when;
+        String revision = manifest == null ? null : manifest.get(EpitreApi.officeKey(what.urlName(), when.toIsoString()));
+
+        boolean isThisWeek = when.isWithin7NextDays();
+
+        // Fast path, from the availability index: nothing to do beyond this week
+        if (revision == null && !isThisWeek && mController.isLecturesInCache(what, when, false)) {
+            Log.i(TAG, what.urlName()+" for "+when.toIsoString()+" SKIPPED");
+            mController.completeSyncTask(task);
+            return;
+        }
+
+        // Do we need to refresh ? Only the metadata is needed, the payload is never loaded here.
+        CacheEntry cacheEntry = mController.getCacheEntry(what, when, false);
+        boolean isFresh = mController.isCacheEntryFresh(cacheEntry, false);
+
+        if (revision != null) {
+            if (isFresh && revision.equals(cacheEntry.getRevision())) {
+                Log.i(TAG, what.urlName()+" for "+when.toIsoString()+" UP TO DATE");
+                mController.completeSyncTask(task);
                 return;
             }
+            // A fresh entry without a revision was loaded outside of a sync, typically from the UI,
+            // and most likely did not change: the conditional request below records its revision
+            boolean unknownRevision = isFresh && cacheEntry.getRevision() == null &&
+                    (cacheEntry.getEtag() != null || cacheEntry.getLastModified() != null);
+            if (!unknownRevision) {
+                toLoad.add(task);
+                revisions.put(what, revision);
+                return;
+            }
+        }
+
+        if (!isFresh) {
+            // Unless the server recently said it does not have it yet
+            if (mController.isKnownMissing(what, when)) {
+                Log.i(TAG, what.urlName()+" for "+when.toIsoString()+" NOT PUBLISHED YET");
+                mController.completeSyncTask(task);
+                return;
+            }
+            toLoad.add(task);
+            return;
+        }
+
+        if (!isThisWeek && revision == null) {
+            // This is more than a week ahead and we already have a version in the cache
+            Log.i(TAG, what.urlName()+" for "+when.toIsoString()+" SKIPPED");
+            mController.completeSyncTask(task);
+            return;
+        }
+
+        // We always load for this week to allow corrections made by volunteers to
+        // eventually reach the phones. This is a conditional request: most of the time, the
+        // server only answers "not modified". Entries without validators yet (loaded by a batch
+        // or by an older version) are loaded in full, with their validators.
+        try {
+            boolean modified = mController.revalidateLectures(what, when, cacheEntry, revision);
+            Log.i(TAG, what.urlName()+" for "+when.toIsoString()+(modified ? " REFRESHED" : " NOT MODIFIED")+" (<7 days)");
+            mController.completeSyncTask(task);
+        } catch (IOException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            Log.e(TAG, "I/O error while revalidating");
+            countIoError(syncResult);
+        }
+    }
+
+    // Sync a group of readings of the same day, in a single request when the server supports it.
+    // Readings which could not be synced stay in the queue.
+    private void syncDay(List<SyncTask> tasks, Map<String, String> manifest, SyncResult syncResult) throws InterruptedException {
+        AelfDate when = tasks.get(0).when;
+        List<SyncTask> toLoad = new ArrayList<>();
+        Map<LecturesController.WHAT, String> revisions = new EnumMap<>(LecturesController.WHAT.class);
+        for (SyncTask task : tasks) {
+            syncReading(task, toLoad, revisions, manifest, syncResult);
+        }
+        if (toLoad.isEmpty()) {
+            return;
+        }
+
+        List<LecturesController.WHAT> whats = new ArrayList<>(toLoad.size());
+        for (SyncTask task : toLoad) {
+            whats.add(task.what);
         }
 
         // Load from the network
         try {
-            Log.i(TAG, "Starting sync for " + what.urlName()+" for "+when.toIsoString());
-            mController.loadLecturesFromNetwork(what, when);
+            Log.i(TAG, "Starting sync for " + whats + " for "+when.toIsoString());
+            Map<LecturesController.WHAT, List<LectureItem>> loaded = mController.loadLecturesFromNetwork(whats, when, revisions);
+            for (SyncTask task : toLoad) {
+                if (loaded.containsKey(task.what)) {
+                    mController.completeSyncTask(task);
+                } else {
+                    Log.e(TAG, "I/O error while syncing "+task.what.urlName());
+                    countIoError(syncResult);
+                }
+            }
         } catch (IOException e) {
             if (e.getCause() instanceof InterruptedException) {
                 throw (InterruptedException) e.getCause();
             }
             Log.e(TAG, "I/O error while syncing");
+            countIoError(syncResult);
+        }
+    }
+
+    // Priority of an office in the sync queue, for a day 'dayOffset' days from today. The offices
+    // most likely to be read come first: today's Mass, today's hours, tomorrow, next Sunday, then the
+    // rest of the horizon, nearest days first.
+    static int syncPriority(LecturesController.WHAT what, AelfDate when, int dayOffset) {
+        if (dayOffset == 0) {
+            return what == LecturesController.WHAT.MESSE ? PRIORITY_TODAY_MASS : PRIORITY_TODAY;
+        } else if (dayOffset == 1) {
+            return PRIORITY_TOMORROW;
+        } else if (dayOffset <= 7 && when.isSunday()) {
+            return PRIORITY_NEXT_SUNDAY;
+        }
+        return PRIORITY_LATER + dayOffset;
+    }
+
+    // Plan the sync of 'whats' for the next 'daysToSync' days, by priority
+    private static List<SyncTask> planSync(int daysToSync, List<LecturesController.WHAT> whats) {
+        List<SyncTask> plan = new ArrayList<>();
+        AelfDate today = new AelfDate();
+        for (int dayOffset = 0; dayOffset < daysToSync; dayOffset++) {
+            AelfDate when = today.plusDays(dayOffset);
+            for (LecturesController.WHAT what : whats) {
+                plan.add(new SyncTask(what, when, syncPriority(what, when, dayOffset)));
+            }
+        }
+
+        // Same order as the persistent queue
+        Collections.sort(plan, new Comparator<SyncTask>() {
+            @Override
+            public int compare(SyncTask a, SyncTask b) {
+                if (a.priority != b.priority) {
+                    return a.priority < b.priority ? -1 : 1;
+                }
+                return a.when.compareTo(b.when);
+            }
+        });
+        return plan;
+    }
+
+    // Move the tasks an interrupted sync did not run first. The ones it ran only have to be checked
+    // again. Pending tasks which are no longer planned, e.g. after a change of the preferences, are
+    // dropped.
+    private static List<SyncTask> resumeSync(List<SyncTask> plan, List<SyncTask> pending) {
+        Set<String> pendingKeys = new HashSet<>();
+        for (SyncTask task : pending) {
+            pendingKeys.add(task.what.urlName()+"/"+task.when.toEpochDay());
+        }
+
+        List<SyncTask> resumed = new ArrayList<>(plan.size());
+        List<SyncTask> done = new ArrayList<>();
+        for (SyncTask task : plan) {
+            if (pendingKeys.contains(task.what.urlName()+"/"+task.when.toEpochDay())) {
+                resumed.add(task);
+            } else {
+                done.add(task);
+            }
+        }
+        resumed.addAll(done);
+        return resumed;
+    }
+
+    // Split the queue in groups of consecutive tasks for the same day and priority. Each group is
+    // loaded in a single request.
+    private static List<List<SyncTask>> groupSyncTasks(List<SyncTask> queue) {
+        List<List<SyncTask>> groups = new ArrayList<>();
+        List<SyncTask> group = null;
+        for (SyncTask task : queue) {
+            if (group == null || group.get(0).priority != task.priority || !group.get(0).when.isSameDay(task.when)) {
+                group = new ArrayList<>();
+                groups.add(group);
+            }
+            group.add(task);
+        }
+        return groups;
+    }
+
+    // SyncResult is not thread safe and days are synced in parallel
+    private static void countIoError(SyncResult syncResult) {
+        synchronized (syncResult) {
             syncResult.stats.numIoExceptions++;
         }
     }
 
-    // Sync all readings for the day
-    private void syncDay(AelfDate when, int max, SyncResult syncResult) throws InterruptedException {
-        syncReading(LecturesController.WHAT.METAS, when, syncResult);
-        while(max-- > 0) {
-            LecturesController.WHAT what = LecturesController.WHAT.values()[max];
-            syncReading(what, when, syncResult);
+    private static long getIoErrors(SyncResult syncResult) {
+        synchronized (syncResult) {
+            return syncResult.stats.numIoExceptions;
+        }
+    }
+
+    // Should the sync go on ? Checks the error cap, the API health, the network and the time budget.
+    private boolean shouldContinue(SyncResult syncResult, long deadlineMillis, boolean isManualSync, boolean wifiOnly) {
+        if (getIoErrors(syncResult) > MAX_IO_ERRORS) {
+            Log.w(TAG, "Too many errors, cancelling sync");
+            return false;
+        } else if (EpitreApi.getInstance(mContext).getHealth().getState() == ApiHealth.State.OPEN) {
+            Log.w(TAG, "API is unhealthy, cancelling sync");
+            return false;
+        } else if (!revalidateConnection(isManualSync, wifiOnly)) {
+            Log.w(TAG, "Network went down, cancelling sync");
+            return false;
+        } else if (System.currentTimeMillis() > deadlineMillis) {
+            Log.w(TAG, "Time budget exceeded, cancelling sync");
+            return false;
+        }
+        return true;
+    }
+
+    // Sync the next 'daysToSync' days on a bounded pool, following the persistent sync queue. The
+    // queue is always planned again, so that the current preferences and the revalidation of this
+    // week apply. If a previous sync was interrupted today, it resumes where it stopped. Each group of tasks is checked against shouldContinue before it starts. Writes and
+    // checkpoints go through the controller's cache batch, which has a single writer.
+    private void syncDays(int daysToSync, List<LecturesController.WHAT> whats, final SyncResult syncResult, final long deadlineMillis, final boolean isManualSync, final boolean wifiOnly) throws InterruptedException {
+        List<SyncTask> queue = planSync(daysToSync, whats);
+        List<SyncTask> pending = mController.loadSyncQueue();
+        if (!pending.isEmpty()) {
+            Log.i(TAG, "Resuming sync, "+pending.size()+" offices left");
+            queue = resumeSync(queue, pending);
+        }
+        mController.planSync(queue);
+
+        // Compare against the server's manifest first, when available. Nothing is loaded for the
+        // offices it lists unless they changed.
+        final Map<String, String> manifest = mController.loadManifest(new AelfDate(), daysToSync);
+        if (manifest != null) {
+            Log.i(TAG, "Syncing against a manifest of "+manifest.size()+" offices");
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(SYNC_WORKERS);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        List<List<SyncTask>> groups = groupSyncTasks(queue);
+        List<Future<Void>> results = new ArrayList<>(groups.size());
+
+        try {
+            for (final List<SyncTask> group : groups) {
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        if (stopped.get()) {
+                            return null;
+                        }
+                        if (!shouldContinue(syncResult, deadlineMillis, isManualSync, wifiOnly)) {
+                            stopped.set(true);
+                            return null;
+                        }
+
+                        syncDay(group, manifest, syncResult);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
         }
     }
 
@@ -163,22 +439,31 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         String pLectures = res.getString(R.string.pref_lectures_def);
         String pDuree    = res.getString(R.string.pref_duree_def);
         String pConserv  = res.getString(R.string.pref_conserv_def);
+        String pBudget   = res.getString(R.string.pref_cache_budget_def);
 
         // read preferences
         pLectures = syncPref.getString(SyncPrefActivity.KEY_PREF_SYNC_LECTURES, pLectures);
         pDuree    = syncPref.getString(SyncPrefActivity.KEY_PREF_SYNC_DUREE,    pDuree);
         pConserv  = syncPref.getString(SyncPrefActivity.KEY_PREF_SYNC_CONSERV,  pConserv);
+        pBudget   = syncPref.getString(SyncPrefActivity.KEY_PREF_SYNC_CACHE_BUDGET, pBudget);
 
         Log.i(TAG, "Pref lectures="+pLectures);
         Log.i(TAG, "Pref durée="+pDuree);
         Log.i(TAG, "Pref conservation="+pConserv);
+        Log.i(TAG, "Pref budget="+pBudget);
 
         LecturesController controller = LecturesController.getInstance(this.getContext());
 
         // turn params into something usable
         int daysToSync = 0;
-        // FIXME: -1 because 8 is Meta, which is always synced
-        int whatMax = (pLectures.equals("messe-offices"))?LecturesController.WHAT.values().length-1:1;
+        // The metadata is always synced: the server's version has the memorials and the proper
+        // feasts, the computed one does not. It is loaded along with the other offices of its day.
+        List<LecturesController.WHAT> whats = new ArrayList<>();
+        for (LecturesController.WHAT what : LecturesController.WHAT.values()) {
+            if (what == LecturesController.WHAT.MESSE || what == LecturesController.WHAT.METAS || pLectures.equals("messe-offices")) {
+                whats.add(what);
+            }
+        }
         long currentTimeMillis = System.currentTimeMillis();
 
         switch (pDuree) {
@@ -195,31 +480,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
         // ** SYNC **
         String errorName = "success";
+        controller.beginCacheBatch();
         try {
-            // Pre-Load 'daysToSync'. It is important to create a new date instance. Otherwise, all
-            // future would be sharing the same date instance and save more or less on the same day
-            // which is not quite good...
-            for (int i = 0; i < daysToSync; i++) {
-                // Compute remaining time budget
-                long timeBudget = currentTimeMillis + MAX_RUN_TIME - System.currentTimeMillis();
-
-                // Check error conditions
-                if (syncResult.stats.numIoExceptions > 10) {
-                    Log.w(TAG, "Too many errors, cancelling sync");
-                    break;
-                } else if (!revalidateConnection(isManualSync, wifiOnly)) {
-                    Log.w(TAG, "Network went down, cancelling sync");
-                    break;
-                } else if (timeBudget < 0) {
-                    Log.w(TAG, "Time budget exceeded, cancelling sync");
-                    break;
-                }
-
-                // Actual sync
-                AelfDate when = new AelfDate();
-                when.add(Calendar.DATE, i);
-                syncDay(when, whatMax, syncResult);
-            }
+            // Pre-Load 'daysToSync'
+            syncDays(daysToSync, whats, syncResult, currentTimeMillis + MAX_RUN_TIME, isManualSync, wifiOnly);
         } catch (InterruptedException e) {
             Log.i(TAG, "Sync was interrupted, scheduling retry");
             syncResult.stats.numIoExceptions++;
@@ -228,9 +492,13 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             throw e;
         }
         finally {
+            // Commit any pending cache write
+            controller.endCacheBatch();
 
             // Track sync status
             Log.d(TAG, "Sync result: "+syncResult.toDebugString());
+            String apiHealth = EpitreApi.getInstance(mContext).getHealth().toString();
+            Log.i(TAG, "API health: "+apiHealth);
             if (syncResult.stats.numIoExceptions > 0) {
                 errorName = "io";
             }
@@ -238,6 +506,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             // Internally track last sync data in DEDICATED store to avoid races with user set preferences (last write wins, hence a sync would overwrite any changes...)
             SharedPreferences.Editor editor = syncStat.edit();
             editor.putLong(SyncPrefActivity.KEY_APP_SYNC_LAST_ATTEMPT, currentTimeMillis);
+            editor.putString(SyncPrefActivity.KEY_APP_API_HEALTH, apiHealth);
             if (errorName.equals("success")) {
                 editor.putLong(SyncPrefActivity.KEY_APP_SYNC_LAST_SUCCESS, currentTimeMillis);
             }
@@ -245,20 +514,32 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         }
 
         // ** CLEANUP **
-        GregorianCalendar minConserv = new GregorianCalendar();
+        // Runs once the sync is done, outside of its time budget.
+        int maxAgeDays = 0;
         switch (pConserv) {
             case "semaine":
-                minConserv.add(Calendar.DATE, -7);
+                maxAgeDays = 7;
                 break;
             case "mois":
-                minConserv.add(Calendar.MONTH, -1);
+                maxAgeDays = 31;
                 break;
             case "toujours":
-                // let's be honest: If I keep all, users will kill me !
-                minConserv.add(Calendar.YEAR, -1);
+                // Bounded by the size budget only
+                maxAgeDays = CacheRetentionPolicy.KEEP_FOREVER;
                 break;
         }
-        controller.truncateBefore(minConserv);
+
+        long maxBytes;
+        try {
+            maxBytes = Long.parseLong(pBudget) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            maxBytes = Long.parseLong(res.getString(R.string.pref_cache_budget_def)) * 1024 * 1024;
+        }
+
+        long cacheSize = controller.applyRetention(new CacheRetentionPolicy(maxBytes, maxAgeDays));
+        if (cacheSize >= 0) {
+            syncStat.edit().putLong(SyncPrefActivity.KEY_APP_CACHE_SIZE, cacheSize).commit();
+        }
     }
 
     /**
@@ -0,0 +1,117 @@
+package co.epitre.aelf_lectures.data;
+
+import org.junit.Test;
+
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AelfDateTest {
+
+    @Test
+    public void epochDay() {
+        assertEquals(0, AelfDate.epochDay(1970, 1, 1));
+        assertEquals(-1, AelfDate.epochDay(1969, 12, 31));
+        assertEquals(59, AelfDate.epochDay(1970, 3, 1));
+        assertEquals(11016, AelfDate.epochDay(2000, 2, 29));
+        assertEquals(17610, AelfDate.epochDay(2018, 3, 20));
+        assertEquals(20744, AelfDate.epochDay(2026, 10, 18));
+    }
+
+    @Test
+    public void fieldsRoundTrip() {
+        // Every day from 1900 to 2100, against the platform calendar
+        GregorianCalendar calendar = new GregorianCalendar(1900, GregorianCalendar.JANUARY, 1, 12, 0);
+        GregorianCalendar end = new GregorianCalendar(2100, GregorianCalendar.DECEMBER, 31, 12, 0);
+        int expected = AelfDate.epochDay(1900, 1, 1);
+        while (!calendar.after(end)) {
+            int year = calendar.get(GregorianCalendar.YEAR);
+            int month = calendar.get(GregorianCalendar.MONTH);
+            int day = calendar.get(GregorianCalendar.DAY_OF_MONTH);
+
+            AelfDate date = new AelfDate(year, month, day);
+            assertEquals(expected, date.toEpochDay());
+            assertEquals(year, date.getYear());
+            assertEquals(month, date.getMonth());
+            assertEquals(day, date.getDayOfMonth());
+            assertEquals(calendar.get(GregorianCalendar.DAY_OF_WEEK), date.getDayOfWeek());
+            assertEquals(calendar.getActualMaximum(GregorianCalendar.DAY_OF_MONTH), date.lengthOfMonth());
+            assertEquals(date, AelfDate.fromEpochDay(expected));
+            assertEquals(date, new AelfDate(calendar.getTimeInMillis()));
+
+            calendar.add(GregorianCalendar.DAY_OF_MONTH, 1);
+            expected++;
+        }
+    }
+
+    @Test
+    public void startOfDay() {
+        // Zones with DST changes skipping or repeating midnight: the result is the first instant of
+        // the day, according to the platform calendar
+        String[] zones = {"UTC", "Europe/Paris", "America/Sao_Paulo", "America/Havana", "Asia/Tehran", "Pacific/Chatham"};
+        for (String id : zones) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            GregorianCalendar calendar = new GregorianCalendar(zone);
+            for (int epochDay = AelfDate.epochDay(1980, 1, 1); epochDay < AelfDate.epochDay(2030, 1, 1); epochDay++) {
+                long start = AelfDate.startOfDay(epochDay, zone);
+                assertEquals(id+" "+start, epochDay, epochDay(calendar, start));
+                assertEquals(id+" "+start, epochDay - 1, epochDay(calendar, start - 1));
+            }
+        }
+    }
+
+    private static int epochDay(GregorianCalendar calendar, long timestamp) {
+        calendar.setTimeInMillis(timestamp);
+        return AelfDate.epochDay(calendar.get(GregorianCalendar.YEAR), calendar.get(GregorianCalendar.MONTH) + 1, calendar.get(GregorianCalendar.DAY_OF_MONTH));
+    }
+
+    @Test
+    public void dayOfWeek() {
+        assertEquals(GregorianCalendar.THURSDAY, AelfDate.fromEpochDay(0).getDayOfWeek());
+        assertEquals(GregorianCalendar.WEDNESDAY, AelfDate.fromEpochDay(-1).getDayOfWeek());
+        assertEquals(GregorianCalendar.SUNDAY, new AelfDate(2026, 9, 18).getDayOfWeek());
+        assertTrue(new AelfDate(2026, 9, 18).isSunday());
+        assertFalse(new AelfDate(2026, 9, 19).isSunday());
+    }
+
+    @Test
+    public void arithmetic() {
+        AelfDate date = new AelfDate(2024, 1, 28);
+        assertEquals(new AelfDate(2024, 1, 29), date.plusDays(1));
+        assertEquals(new AelfDate(2024, 2, 1), date.plusDays(2));
+        assertEquals(new AelfDate(2023, 11, 31), date.plusDays(-59));
+        assertEquals(2, date.plusDays(2).dayBetween(date));
+        assertEquals(-2, date.dayBetween(date.plusDays(2)));
+        assertTrue(date.compareTo(date.plusDays(1)) < 0);
+        assertEquals(0, date.compareTo(new AelfDate(2024, 1, 28)));
+    }
+
+    @Test
+    public void relativeDays() {
+        AelfDate today = new AelfDate();
+        assertTrue(today.isToday());
+        assertTrue(today.plusDays(1).isTomorrow());
+        assertTrue(today.plusDays(-1).isYesterday());
+
+        assertTrue(today.isWithin7NextDays());
+        assertTrue(today.plusDays(6).isWithin7NextDays());
+        assertFalse(today.plusDays(7).isWithin7NextDays());
+        assertFalse(today.plusDays(-1).isWithin7NextDays());
+
+        assertFalse(today.isWithin7PrevDays());
+        assertTrue(today.plusDays(-1).isWithin7PrevDays());
+        assertTrue(today.plusDays(-7).isWithin7PrevDays());
+        assertFalse(today.plusDays(-8).isWithin7PrevDays());
+    }
+
+    @Test
+    public void formatting() {
+        AelfDate date = new AelfDate(2018, 2, 5);
+        assertEquals("2018-03-05", date.toIsoString());
+        assertEquals("05/03/2018", date.toUrlString());
+        assertEquals("2018-03-05", date.toString());
+    }
+}
@@ -0,0 +1,96 @@
+package co.epitre.aelf_lectures.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheAvailabilityIndexTest {
+
+    @Test
+    public void presentAndFresh() {
+        CacheAvailabilityIndex index = new CacheAvailabilityIndex("romain", "0/1");
+        index.set("messes", 17610, true);
+        index.set("messes", 17611, false);
+        index.set("messes", -1, true);
+
+        assertTrue(index.isPresent("messes", 17610));
+        assertTrue(index.isFresh("messes", 17610));
+        assertTrue(index.isPresent("messes", 17611));
+        assertFalse(index.isFresh("messes", 17611));
+        assertFalse(index.isPresent("messes", 17612));
+        assertFalse(index.isPresent("laudes", 17610));
+        assertFalse(index.isPresent("messes", -1));
+
+        // Stored again, now fresh
+        index.set("messes", 17611, true);
+        assertTrue(index.isFresh("messes", 17611));
+
+        assertTrue(index.matches("romain", "0/1"));
+        assertFalse(index.matches("france", "0/1"));
+        assertFalse(index.matches("romain", "0/2"));
+    }
+
+    @Test
+    public void clear() {
+        CacheAvailabilityIndex index = new CacheAvailabilityIndex("romain", "0/1");
+        index.set("messes", 17610, true);
+        index.set("messes", 17611, true);
+        index.clear("messes", 17610);
+        index.clear("laudes", 17610);
+
+        assertFalse(index.isPresent("messes", 17610));
+        assertFalse(index.isFresh("messes", 17610));
+        assertTrue(index.isFresh("messes", 17611));
+        assertFalse(index.isPresent("laudes", 17610));
+
+        // Serialized from the first remaining day
+        assertEquals(17608, index.base("messes"));
+        index.clear("messes", 17611);
+        assertEquals(0, index.presentBytes("messes").length);
+    }
+
+    @Test
+    public void serialization() {
+        CacheAvailabilityIndex index = new CacheAvailabilityIndex("romain", "0/1");
+        int[] days = {17610, 17611, 17625, 17700, 18000};
+        for (int day : days) {
+            index.set("messes", day, day != 17625);
+        }
+        index.set("laudes", 17703, true);
+
+        // Bits are stored from the first day, rounded down to a byte
+        assertEquals(17608, index.base("messes"));
+        assertEquals(17696, index.base("laudes"));
+        assertEquals((18000 - 17608) / 8 + 1, index.presentBytes("messes").length);
+        assertArrayEquals(new byte[]{(byte) 0x80}, index.presentBytes("laudes"));
+
+        CacheAvailabilityIndex loaded = new CacheAvailabilityIndex("romain", "0/1");
+        for (String office : index.offices()) {
+            loaded.load(office, index.base(office), index.presentBytes(office), index.freshBytes(office));
+        }
+
+        for (int day = 17000; day < 18500; day++) {
+            for (String office : new String[]{"messes", "laudes", "vepres"}) {
+                assertEquals(office+" "+day, index.isPresent(office, day), loaded.isPresent(office, day));
+                assertEquals(office+" "+day, index.isFresh(office, day), loaded.isFresh(office, day));
+            }
+        }
+    }
+
+    @Test
+    public void emptyOffice() {
+        CacheAvailabilityIndex index = new CacheAvailabilityIndex("romain", "0/1");
+        assertEquals(0, index.base("messes"));
+        assertEquals(0, index.presentBytes("messes").length);
+        assertEquals(0, index.freshBytes("messes").length);
+
+        // Older rows may have no fresh bits at all
+        CacheAvailabilityIndex loaded = new CacheAvailabilityIndex("romain", "0/1");
+        loaded.load("messes", 17608, new byte[]{0x04}, null);
+        assertTrue(loaded.isPresent("messes", 17610));
+        assertFalse(loaded.isFresh("messes", 17610));
+    }
+}
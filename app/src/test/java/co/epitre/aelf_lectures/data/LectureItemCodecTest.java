@@ -0,0 +1,150 @@
+package co.epitre.aelf_lectures.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LectureItemCodecTest {
+
+    @Test
+    public void roundTripBinary() throws Exception {
+        List<LectureItem> lectures = Arrays.asList(
+                new LectureItem("k1", "Lecture : Isaïe", "<p>Court</p>", "Is 1, 1"),
+                new LectureItem(null, "Psaume", null, null));
+
+        byte[] blob = LectureItemCodec.encode(lectures);
+        assertEquals(LectureItemCodec.FORMAT_BINARY, blob[0]);
+        assertSameLectures(lectures, LectureItemCodec.decode(blob));
+    }
+
+    @Test
+    public void roundTripCompressed() throws Exception {
+        List<LectureItem> lectures = Arrays.asList(
+                new LectureItem("k1", "Lecture : Isaïe", longText("Lecture du livre du prophète Isaïe", 0), "Is 1, 1"),
+                new LectureItem("k2", "Évangile", longText("Évangile de Jésus Christ selon saint Jean", 1), "Jn 3, 16"));
+
+        byte[] blob = LectureItemCodec.encode(lectures, true);
+        assertEquals(LectureItemCodec.FORMAT_DEFLATE_DICT_V1, blob[0]);
+        assertSameLectures(lectures, LectureItemCodec.decode(blob));
+    }
+
+    @Test
+    public void roundTripSharedBodies() throws Exception {
+        String psalm = longText("Gloire au Père, et au Fils, et au Saint-Esprit", 2);
+        List<LectureItem> lectures = Arrays.asList(
+                new LectureItem("psaume1", "Psaume 1", psalm, "Ps 1"),
+                new LectureItem("oraison", "Oraison", "<p>Court</p>", null),
+                new LectureItem("psaume1-bis", "Psaume 1", psalm, "Ps 1"));
+
+        Map<String, byte[]> bodies = new HashMap<>();
+        byte[] blob = LectureItemCodec.encode(lectures, bodies);
+        assertEquals(LectureItemCodec.FORMAT_BINARY_REFS, blob[0]);
+
+        // The same body is only stored once
+        assertEquals(1, bodies.size());
+        assertEquals(new ArrayList<>(bodies.keySet()), LectureItemCodec.references(blob));
+        assertSameLectures(lectures, LectureItemCodec.decode(blob, bodies));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingSharedBody() throws Exception {
+        List<LectureItem> lectures = Arrays.asList(new LectureItem("psaume1", "Psaume 1", longText("Psaume", 3), "Ps 1"));
+        byte[] blob = LectureItemCodec.encode(lectures, new HashMap<String, byte[]>());
+        LectureItemCodec.decode(blob, new HashMap<String, byte[]>());
+    }
+
+    @Test
+    public void decodeLegacy() throws Exception {
+        List<LectureItem> lectures = new ArrayList<>(Arrays.asList(new LectureItem("k1", "Lecture : Isaïe", "<p>Court</p>", "Is 1, 1")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(lectures);
+        oos.close();
+
+        assertSameLectures(lectures, LectureItemCodec.decode(out.toByteArray()));
+    }
+
+    @Test
+    public void truncatedEntries() throws Exception {
+        String psalm = longText("Gloire au Père, et au Fils, et au Saint-Esprit", 4);
+        List<LectureItem> lectures = Arrays.asList(
+                new LectureItem("psaume1", "Psaume 1", psalm, "Ps 1"),
+                new LectureItem("oraison", "Oraison", "<p>Court</p>", null));
+
+        Map<String, byte[]> bodies = new HashMap<>();
+        byte[][] blobs = {
+                LectureItemCodec.encode(lectures, false),
+                LectureItemCodec.encode(lectures, true),
+                LectureItemCodec.encode(lectures, bodies),
+        };
+        // Either an error or, when only the end of the deflate stream is missing, the whole office
+        for (byte[] blob : blobs) {
+            for (int length = 1; length < blob.length; length++) {
+                List<LectureItem> decoded;
+                try {
+                    decoded = LectureItemCodec.decode(Arrays.copyOf(blob, length), bodies);
+                } catch (IOException e) {
+                    continue;
+                }
+                assertSameLectures(lectures, decoded);
+            }
+        }
+    }
+
+    @Test
+    public void corruptedLengths() throws Exception {
+        // Item count far larger than the entry
+        assertDecodeFails(new byte[]{LectureItemCodec.FORMAT_BINARY, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}, null);
+        assertDecodeFails(new byte[]{LectureItemCodec.FORMAT_BINARY_REFS, 0, (byte) 0xFF, (byte) 0xFF, 0x03}, null);
+
+        // Reference count
+        assertDecodeFails(new byte[]{LectureItemCodec.FORMAT_BINARY_REFS, (byte) 0xFF, (byte) 0xFF, 0x03, 0, 0}, null);
+
+        // Uncompressed length of 2GB
+        assertDecodeFails(new byte[]{LectureItemCodec.FORMAT_DEFLATE_DICT_V1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0}, null);
+
+        // Negative string length
+        assertDecodeFails(new byte[]{LectureItemCodec.FORMAT_BINARY, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 1, 1, 1, 1, 1}, null);
+    }
+
+    private static void assertDecodeFails(byte[] blob, Map<String, byte[]> bodies) {
+        try {
+            LectureItemCodec.decode(blob, bodies);
+            fail("Decoded a corrupted entry of "+blob.length+" bytes");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static String longText(String verse, int seed) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 2048; i++) {
+            text.append("<line><span class=\"verse\">").append(seed).append('.').append(i).append("</span> ").append(verse).append("</line>\n");
+        }
+        return text.toString();
+    }
+
+    private static void assertSameLectures(List<LectureItem> expected, List<LectureItem> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            LectureItem e = expected.get(i);
+            LectureItem a = actual.get(i);
+            assertEquals(e.key, a.key);
+            assertEquals(e.longTitle, a.longTitle);
+            assertEquals(e.shortTitle, a.shortTitle);
+            assertEquals(e.title, a.title);
+            assertEquals(e.description, a.description);
+            assertEquals(e.reference, a.reference);
+        }
+    }
+}
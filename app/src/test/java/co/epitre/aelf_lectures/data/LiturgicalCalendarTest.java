@@ -0,0 +1,98 @@
+package co.epitre.aelf_lectures.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class LiturgicalCalendarTest {
+
+    @Test
+    public void easter() {
+        assertEquals(AelfDate.epochDay(2000, 4, 23), LiturgicalCalendar.easter(2000));
+        assertEquals(AelfDate.epochDay(2008, 3, 23), LiturgicalCalendar.easter(2008));
+        assertEquals(AelfDate.epochDay(2011, 4, 24), LiturgicalCalendar.easter(2011));
+        assertEquals(AelfDate.epochDay(2018, 4, 1), LiturgicalCalendar.easter(2018));
+        assertEquals(AelfDate.epochDay(2019, 4, 21), LiturgicalCalendar.easter(2019));
+        assertEquals(AelfDate.epochDay(2024, 3, 31), LiturgicalCalendar.easter(2024));
+        assertEquals(AelfDate.epochDay(2025, 4, 20), LiturgicalCalendar.easter(2025));
+        assertEquals(AelfDate.epochDay(2026, 4, 5), LiturgicalCalendar.easter(2026));
+        assertEquals(AelfDate.epochDay(2038, 4, 25), LiturgicalCalendar.easter(2038));
+        assertEquals(AelfDate.epochDay(2285, 3, 22), LiturgicalCalendar.easter(2285));
+    }
+
+    @Test
+    public void dayOfWeek() {
+        assertEquals(4, LiturgicalCalendar.dayOfWeek(0));
+        assertEquals(3, LiturgicalCalendar.dayOfWeek(-1));
+        assertEquals(0, LiturgicalCalendar.dayOfWeek(AelfDate.epochDay(2026, 10, 18)));
+    }
+
+    @Test
+    public void temporalCycle() {
+        LiturgicalCalendar.Day easter = day(2026, 4, 5, "romain");
+        assertEquals(LiturgicalCalendar.Season.EASTER, easter.season);
+        assertEquals("Dimanche de Pâques", easter.celebration);
+        assertEquals(LiturgicalCalendar.RANK_TRIDUUM, easter.rank);
+
+        LiturgicalCalendar.Day sunday = day(2026, 10, 18, "romain");
+        assertEquals(LiturgicalCalendar.Season.ORDINARY, sunday.season);
+        assertEquals(29, sunday.week);
+        assertEquals(1, sunday.psalterWeek);
+        assertEquals("29e dimanche du Temps Ordinaire", sunday.celebration);
+
+        assertEquals("1er dimanche de l'Avent", day(2026, 11, 29, "romain").celebration);
+        assertEquals("Mercredi des Cendres", day(2026, 2, 18, "romain").celebration);
+        assertEquals("Pentecôte", day(2026, 5, 24, "romain").celebration);
+        assertEquals("Le Christ, Roi de l'univers", day(2026, 11, 22, "romain").celebration);
+    }
+
+    @Test
+    public void regionalTransfers() {
+        // Epiphany: January 6 in the Roman calendar, the Sunday between January 2 and 8 elsewhere
+        assertEquals("Épiphanie du Seigneur", day(2027, 1, 6, "romain").celebration);
+        assertEquals("Épiphanie du Seigneur", day(2027, 1, 3, "france").celebration);
+        assertNotEquals("Épiphanie du Seigneur", day(2027, 1, 6, "france").celebration);
+        assertEquals("Baptême du Seigneur", day(2027, 1, 10, "france").celebration);
+
+        // Corpus Christi: Thursday in the Roman calendar, next Sunday elsewhere
+        String corpusChristi = "Le Saint-Sacrement du Corps et du Sang du Christ";
+        assertEquals(corpusChristi, day(2026, 6, 4, "romain").celebration);
+        assertEquals(corpusChristi, day(2026, 6, 7, "france").celebration);
+        assertNotEquals(corpusChristi, day(2026, 6, 4, "france").celebration);
+
+        // Ascension: Sunday in Canada
+        assertEquals("Ascension du Seigneur", day(2026, 5, 14, "romain").celebration);
+        assertEquals("Ascension du Seigneur", day(2026, 5, 17, "canada").celebration);
+    }
+
+    @Test
+    public void solemnityTransfers() {
+        // Annunciation during the Holy Week: after the octave of Easter
+        assertNotEquals("Annonciation du Seigneur", day(2024, 3, 25, "romain").celebration);
+        assertEquals("Annonciation du Seigneur", day(2024, 4, 8, "romain").celebration);
+
+        // Saint Joseph on a Sunday of Lent: the next day
+        assertEquals("4e dimanche de Carême", day(2023, 3, 19, "romain").celebration);
+        assertEquals("Saint Joseph", day(2023, 3, 20, "romain").celebration);
+
+        // Not impeded by an ordinary Sunday
+        assertEquals("Assomption de la Vierge Marie", day(2027, 8, 15, "romain").celebration);
+    }
+
+    @Test
+    public void feastsAndSundays() {
+        // A feast of the Lord replaces a Sunday in Ordinary Time, other feasts do not
+        assertEquals("Transfiguration du Seigneur", day(2028, 8, 6, "romain").celebration);
+        assertEquals("Saint Luc", day(2027, 10, 18, "romain").celebration);
+        assertEquals("29e dimanche du Temps Ordinaire", day(2026, 10, 18, "romain").celebration);
+
+        // Regional celebrations
+        assertEquals("Saint Nicolas de Flüe", day(2026, 9, 25, "suisse").celebration);
+        assertNotEquals("Saint Nicolas de Flüe", day(2026, 9, 25, "romain").celebration);
+    }
+
+    private static LiturgicalCalendar.Day day(int year, int month, int day, String region) {
+        return LiturgicalCalendar.getDay(new AelfDate(year, month - 1, day), region);
+    }
+}